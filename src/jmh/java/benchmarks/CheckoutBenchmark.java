@@ -0,0 +1,48 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Switching and merging branches of a synthetic repository
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CheckoutBenchmark {
+  private static final String BRANCH = SyntheticRepository.BRANCH_PREFIX + 0;
+
+  /**
+   * Calls go back and forth between master and a branch
+   */
+  @State(Scope.Thread)
+  public static class Target {
+    private boolean toBranch = false;
+
+    String next() {
+      toBranch = !toBranch;
+      return toBranch ? BRANCH : SyntheticRepository.MASTER;
+    }
+  }
+
+  /**
+   * Master is reset to where it was generated before each merge
+   */
+  @State(Scope.Thread)
+  public static class Unmerged {
+    @Setup(Level.Invocation)
+    public void reset(RepositoryState state) {
+      state.git.reset(SyntheticRepository.BASE, false, false);
+    }
+  }
+
+  @Benchmark
+  public void checkout(RepositoryState state, Target target) {
+    state.git.checkout(target.next());
+  }
+
+  @Benchmark
+  public void merge(RepositoryState state, Unmerged unmerged) {
+    state.git.merge(BRANCH, true, false);
+  }
+}
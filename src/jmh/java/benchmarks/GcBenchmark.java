@@ -0,0 +1,23 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Garbage collection of a synthetic repository. After the first call nothing is
+ * unreachable, so the cost is marking, listing objects and, with packing, rewriting them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GcBenchmark {
+  @Benchmark
+  public void gc(RepositoryState state) {
+    state.git.gc(false, false);
+  }
+
+  @Benchmark
+  public void gcPack(RepositoryState state) {
+    state.git.gc(true, false);
+  }
+}
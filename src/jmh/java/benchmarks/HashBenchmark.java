@@ -0,0 +1,47 @@
+package benchmarks;
+
+import git.Hasher;
+import git.ObjectId;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Object hash functions, a repository chooses one of them on init
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class HashBenchmark {
+  @Param({"sha1", "sha256", "blake3"})
+  public String hash;
+
+  @Param({"64", "4096", "1048576"})
+  public int size;
+
+  private Hasher hasher;
+  private byte[] content;
+
+  @Setup
+  public void create() {
+    hasher = Hasher.forName(hash);
+    content = new byte[size];
+    new Random(size).nextBytes(content);
+  }
+
+  @Benchmark
+  public ObjectId hashBytes() {
+    return hasher.hash(content);
+  }
+
+  /**
+   * As blobs are hashed, through a buffered stream
+   */
+  @Benchmark
+  public ObjectId hashStream() throws IOException {
+    return hasher.hash(new ByteArrayInputStream(content));
+  }
+}
@@ -0,0 +1,37 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walking the history of a synthetic repository, as <tt>gi log</tt> does
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HistoryBenchmark {
+  private static final long PAGE = 20;
+
+  /**
+   * Each call opens the repository anew, so that commits are loaded as a command loads them
+   */
+  @Benchmark
+  public void logAll(RepositoryState state, Blackhole blackhole) {
+    state.repository.open().log(SyntheticRepository.MASTER, 0, Long.MAX_VALUE, null, blackhole::consume);
+  }
+
+  @Benchmark
+  public void logPage(RepositoryState state, Blackhole blackhole) {
+    state.repository.open().log(SyntheticRepository.MASTER, 0, PAGE, null, blackhole::consume);
+  }
+
+  /**
+   * The same instance is reused, so that commits come from the object cache
+   * and ancestry from the commit graph
+   */
+  @Benchmark
+  public void logAllWarm(RepositoryState state, Blackhole blackhole) {
+    state.git.log(SyntheticRepository.MASTER, 0, Long.MAX_VALUE, null, blackhole::consume);
+  }
+}
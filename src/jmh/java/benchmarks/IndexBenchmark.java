@@ -0,0 +1,63 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Add, status and commit over the working directory of a synthetic repository
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IndexBenchmark {
+  private static final int CHANGED = 8;
+
+  /**
+   * Files rewritten before each call, so that they have to be hashed again
+   */
+  @State(Scope.Thread)
+  public static class Changes {
+    List<File> files;
+
+    @Setup(Level.Invocation)
+    public void change(RepositoryState state) {
+      files = state.repository.change(CHANGED);
+    }
+  }
+
+  /**
+   * Changed files already added to the index
+   */
+  @State(Scope.Thread)
+  public static class Staged {
+    @Setup(Level.Invocation)
+    public void stage(RepositoryState state) {
+      state.git.addToIndex(state.repository.change(CHANGED));
+    }
+  }
+
+  @Benchmark
+  public void addChanged(RepositoryState state, Changes changes) {
+    state.git.addToIndex(changes.files);
+  }
+
+  /**
+   * All files are unchanged, so their ids are taken from the stat cache
+   */
+  @Benchmark
+  public void addUnchanged(RepositoryState state) {
+    state.git.addToIndex(state.repository.getFiles());
+  }
+
+  @Benchmark
+  public void status(RepositoryState state) {
+    state.git.status();
+  }
+
+  @Benchmark
+  public void commit(RepositoryState state, Staged staged) {
+    state.git.commit("Benchmark");
+  }
+}
@@ -0,0 +1,135 @@
+package benchmarks;
+
+import git.Git;
+import git.Hasher;
+import git.repo.CachingRepositoryManager;
+import git.repo.PackedRepositoryManager;
+import git.repo.RepositoryManager;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stress of the repository lock by separate processes: readers run <tt>gi log -n 1</tt>
+ * and <tt>gi status</tt> in turns, writers add and commit a file in a loop,
+ * all over the same synthetic repository for a fixed time.
+ * For each number of readers and writers it prints the read throughput and lock waits,
+ * reads should scale with readers, whether writers are active or not.<br>
+ * Run with <tt>./gradlew lockStress</tt>.
+ */
+public class LockStress {
+  private static final int[] READERS = {1, 2, 4};
+  private static final int[] WRITERS = {0, 1};
+  private static final long DURATION_MS = 5000;
+  private static final int FILES = 1000;
+  private static final int COMMITS = 10;
+
+  private static final String READER = "reader";
+  private static final String WRITER = "writer";
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0) {
+      runChild(args[0], Integer.parseInt(args[1]), Paths.get(args[2]), Long.parseLong(args[3]));
+      return;
+    }
+
+    SyntheticRepository repository = SyntheticRepository.inTempFolder(FILES, COMMITS, 0, Hasher.DEFAULT);
+    Path root = repository.getRoot();
+    try {
+      System.out.printf("%8s %8s %12s %12s %14s%n", "readers", "writers", "reads/s", "writes/s", "max wait, ms");
+      for (int writers : WRITERS) {
+        for (int readers : READERS) {
+          run(root, readers, writers);
+        }
+      }
+    } finally {
+      repository.delete();
+    }
+  }
+
+  private static void run(Path root, int readers, int writers) throws IOException, InterruptedException {
+    List<Process> readProcesses = new ArrayList<>();
+    List<Process> writeProcesses = new ArrayList<>();
+    for (int i = 0; i < readers; i++) readProcesses.add(start(READER, i, root));
+    for (int i = 0; i < writers; i++) writeProcesses.add(start(WRITER, i, root));
+
+    long[] reads = collect(readProcesses);
+    long[] writes = collect(writeProcesses);
+    double seconds = DURATION_MS / 1000.0;
+    System.out.printf("%8d %8d %12.1f %12.1f %14d%n", readers, writers,
+        reads[0] / seconds, writes[0] / seconds, Math.max(reads[1], writes[1]));
+  }
+
+  private static Process start(String role, int number, Path root) throws IOException {
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), LockStress.class.getName(),
+        role, Integer.toString(number), root.toString(), Long.toString(DURATION_MS))
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+  }
+
+  /**
+   * @return the total number of commands and the longest lock wait in ms
+   */
+  private static long[] collect(List<Process> processes) throws IOException, InterruptedException {
+    long commands = 0;
+    long maxWait = 0;
+    for (Process process : processes) {
+      try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+        String[] result = out.readLine().split(" ");
+        commands += Long.parseLong(result[0]);
+        maxWait = Math.max(maxWait, Long.parseLong(result[1]));
+      }
+      process.waitFor();
+    }
+    return new long[]{commands, maxWait};
+  }
+
+  /**
+   * Runs commands till the time is out, then prints their number and the longest lock wait in ms
+   */
+  private static void runChild(String role, int number, Path root, long durationMs) throws IOException {
+    RepositoryManager repo = new CachingRepositoryManager(new PackedRepositoryManager(root));
+    Git git = new Git(repo, root.toFile());
+    File file = root.resolve("stress-" + number + ".txt").toFile();
+
+    long deadline = System.currentTimeMillis() + durationMs;
+    long commands = 0;
+    while (System.currentTimeMillis() < deadline) {
+      if (role.equals(WRITER)) {
+        Files.write(file.toPath(), Long.toString(commands).getBytes(StandardCharsets.UTF_8));
+        git.addToIndex(Collections.singletonList(file));
+        git.commit("Stress " + commands);
+      } else if (commands % 2 == 0) {
+        git.log("", 0, 1, null, line -> {});
+      } else {
+        muted(git::status);
+      }
+      commands++;
+    }
+
+    System.out.println(commands + " " + TimeUnit.NANOSECONDS.toMillis(repo.getLock().getMaxWaitNanos()));
+  }
+
+  private static void muted(Runnable command) {
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM));
+    try {
+      command.run();
+    } finally {
+      System.setOut(stdout);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import git.Git;
+import git.Hasher;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Synthetic repository, generated once per trial, so every benchmark
+ * starts from the same history. Commands print their results,
+ * so the standard output is muted meanwhile.
+ */
+@State(Scope.Benchmark)
+public class RepositoryState {
+  private static final String MEMORY = "memory";
+
+  @Param({"100", "1000"})
+  public int files;
+
+  @Param({"10", "100"})
+  public int commits;
+
+  @Param({"4"})
+  public int branches;
+
+  @Param({"sha1"})
+  public String hash;
+
+  /**
+   * "file" for a temporary folder, "memory" to leave the disk out
+   */
+  @Param({"file"})
+  public String storage;
+
+  SyntheticRepository repository;
+  Git git;
+  private PrintStream stdout;
+
+  @Setup(Level.Trial)
+  public void create() throws IOException {
+    stdout = System.out;
+    System.setOut(new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM));
+
+    repository = storage.equals(MEMORY)
+        ? SyntheticRepository.inMemory(files, commits, branches, Hasher.forName(hash))
+        : SyntheticRepository.inTempFolder(files, commits, branches, Hasher.forName(hash));
+    git = repository.getGit();
+  }
+
+  @TearDown(Level.Trial)
+  public void delete() throws IOException {
+    System.setOut(stdout);
+    repository.delete();
+  }
+}
@@ -0,0 +1,161 @@
+package benchmarks;
+
+import git.Git;
+import git.Hasher;
+import git.repo.CachingRepositoryManager;
+import git.repo.InMemoryRepositoryManager;
+import git.repo.PackedRepositoryManager;
+import git.repo.RepositoryManager;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Repository with generated content, in a temporary folder or in memory:
+ * <tt>files</tt> files in folders of {@value #FILES_PER_FOLDER}, a history of
+ * <tt>commits</tt> commits on master, each changing a few files, and <tt>branches</tt>
+ * branches, each with a commit of its own. After the branches master gets one more commit,
+ * so that merging any of them is a true merge.<br>
+ * Content comes from a fixed seed, so that runs are comparable.
+ */
+public class SyntheticRepository {
+  public static final String MASTER = "master";
+  public static final String BRANCH_PREFIX = "branch-";
+
+  /**
+   * Branch at the last commit of master
+   */
+  public static final String BASE = "base";
+
+  private static final Path MEMORY_ROOT = Paths.get("/memory");
+  private static final int FILES_PER_FOLDER = 16;
+  private static final int FILE_SIZE = 1024;
+  private static final int LINE_LENGTH = 64;
+  private static final int CHANGED_PER_COMMIT = 4;
+  private static final long SEED = 42;
+
+  private final Path root;
+  private final boolean onDisk;
+  private final Supplier<RepositoryManager> storage;
+  private final RepositoryManager workingDir;
+  private final List<Path> paths = new ArrayList<>();
+  private final List<File> files = new ArrayList<>();
+  private final Random random = new Random(SEED);
+  private Git git;
+
+  private SyntheticRepository(Path root, boolean onDisk, Supplier<RepositoryManager> storage) {
+    this.root = root;
+    this.onDisk = onDisk;
+    this.storage = storage;
+    this.workingDir = storage.get();
+  }
+
+  public static SyntheticRepository inTempFolder(int files, int commits, int branches, Hasher hasher) throws IOException {
+    Path root = Files.createTempDirectory("gi-bench");
+    SyntheticRepository repository = new SyntheticRepository(root, true, () -> new PackedRepositoryManager(root));
+    repository.generate(files, commits, branches, hasher);
+    return repository;
+  }
+
+  public static SyntheticRepository inMemory(int files, int commits, int branches, Hasher hasher) {
+    InMemoryRepositoryManager memory = new InMemoryRepositoryManager();
+    SyntheticRepository repository = new SyntheticRepository(MEMORY_ROOT, false, () -> memory);
+    repository.generate(files, commits, branches, hasher);
+    return repository;
+  }
+
+  private void generate(int fileCount, int commits, int branches, Hasher hasher) {
+    new Git(storage.get(), root.toFile()).init(hasher);
+    git = open();
+
+    for (int i = 0; i < fileCount; i++) {
+      Path path = Paths.get("dir" + i / FILES_PER_FOLDER, "file" + i + ".txt");
+      paths.add(path);
+      files.add(root.resolve(path).toFile());
+      write(path);
+    }
+    git.addToIndex(files);
+    git.commit("Add " + fileCount + " files");
+
+    for (int i = 1; i < commits; i++) {
+      git.addToIndex(change(CHANGED_PER_COMMIT));
+      git.commit("Change " + i);
+    }
+
+    for (int i = 0; i < branches; i++) {
+      git.createBranch(BRANCH_PREFIX + i, MASTER);
+      git.addToIndex(change(CHANGED_PER_COMMIT));
+      git.commit("Change on " + BRANCH_PREFIX + i);
+      git.checkout(MASTER);
+    }
+
+    git.addToIndex(change(CHANGED_PER_COMMIT));
+    git.commit("Change after branches");
+    git.createBranch(BASE, MASTER);
+    git.checkout(MASTER);
+  }
+
+  /**
+   * A new instance of {@link Git} over the repository, as the command line makes
+   */
+  public Git open() {
+    return new Git(new CachingRepositoryManager(storage.get()), root.toFile());
+  }
+
+  public Path getRoot() {
+    return root;
+  }
+
+  /**
+   * The instance, that generated the repository
+   */
+  public Git getGit() {
+    return git;
+  }
+
+  public List<File> getFiles() {
+    return files;
+  }
+
+  /**
+   * Rewrite randomly picked files with new content
+   *
+   * @return the changed files
+   */
+  public List<File> change(int count) {
+    List<File> changed = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      int picked = random.nextInt(paths.size());
+      write(paths.get(picked));
+      changed.add(files.get(picked));
+    }
+    return changed;
+  }
+
+  private void write(Path path) {
+    StringBuilder content = new StringBuilder(FILE_SIZE);
+    while (content.length() < FILE_SIZE) {
+      for (int i = 0; i < LINE_LENGTH - 1; i++) {
+        content.append((char) ('a' + random.nextInt(26)));
+      }
+      content.append('\n');
+    }
+    workingDir.updateFile(path, new ByteArrayInputStream(content.toString().getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public void delete() throws IOException {
+    if (onDisk) {
+      FileUtils.deleteDirectory(root.toFile());
+    }
+  }
+}
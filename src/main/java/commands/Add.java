@@ -2,7 +2,9 @@ package commands;
 
 import git.Git;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
+import util.Workers;
 
 import java.io.File;
 import java.util.List;
@@ -19,9 +21,12 @@ public class Add implements Callable<Void> {
   @Parameters(index = "0..*", arity = "1..*", description = "files to add to index")
   private List<File> files = null;
 
+  @Option(names = {"-j", "--jobs"}, description = "number of threads to scan and hash files with")
+  private Integer jobs = null;
+
   @Override
   public Void call() {
-    if (files != null) git.addToIndex(files);
+    if (files != null) Workers.withThreads(jobs, () -> git.addToIndex(files));
     return null;
   }
 }
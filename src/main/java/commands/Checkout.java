@@ -2,6 +2,7 @@ package commands;
 
 import git.Git;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.io.File;
@@ -22,10 +23,13 @@ public class Checkout implements Callable<Void> {
   @Parameters(index = "1..*", arity = "0..*", description = "files to reset")
   private List<File> files = null;
 
+  @Option(names = "--progress", description = "show the number of written files")
+  private boolean progress;
+
   @Override
   public Void call() {
     if (files == null) {
-      git.checkout(revision);
+      git.checkout(revision, progress);
     } else {
       if ("--".equals(revision))
         revision = "HEAD";
@@ -0,0 +1,21 @@
+package commands;
+
+import git.daemon.DaemonServer;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+@Command(description = "Run commands of other gi calls, keeping repositories and their caches in memory",
+    mixinStandardHelpOptions = true)
+public class Daemon implements Callable<Void> {
+  @Option(names = "--port", description = "loopback port to listen on, any free one by default")
+  private int port = 0;
+
+  @Override
+  public Void call() throws IOException {
+    new DaemonServer().serve(port);
+    return null;
+  }
+}
@@ -0,0 +1,25 @@
+package commands;
+
+import git.Git;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.util.concurrent.Callable;
+
+@Command(description = "Cleanup unreachable objects and optimize the repository", mixinStandardHelpOptions = true)
+public class Gc implements Callable<Void> {
+  private final Git git;
+
+  public Gc(final Git git) {
+    this.git = git;
+  }
+
+  @Option(names = "--pack", description = "move all reachable objects to a single pack")
+  private boolean pack;
+
+  @Override
+  public Void call() {
+    git.gc(pack, true);
+    return null;
+  }
+}
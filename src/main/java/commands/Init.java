@@ -1,7 +1,9 @@
 package commands;
 
 import git.Git;
+import git.Hasher;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 
 import java.util.concurrent.Callable;
 
@@ -13,9 +15,12 @@ public class Init implements Callable<Void> {
     this.git = git;
   }
 
+  @Option(names = "--hash", description = "hash function of objects: sha1 (default), sha256 or blake3")
+  private String hash = null;
+
   @Override
   public Void call() {
-    git.init();
+    git.init(hash == null ? Hasher.DEFAULT : Hasher.forName(hash));
     System.err.println("Initialized empty gi repository");
     return null;
   }
@@ -1,13 +1,20 @@
 package commands;
 
 import git.Git;
+import git.GitException;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.concurrent.Callable;
 
 
-@Command(description = "Show commit logs")
+@Command(description = "Show commit logs", mixinStandardHelpOptions = true)
 public class Log implements Callable<Void> {
   private final Git git;
 
@@ -18,9 +25,35 @@ public class Log implements Callable<Void> {
   @Parameters(arity = "0..1", index = "0", description = "Branch name or revision's hash")
   private String from_revision = null;
 
+  @Option(names = {"-n", "--max-count"}, description = "limit the number of commits to show")
+  private Long maxCount = null;
+
+  @Option(names = "--skip", description = "skip the number of commits before starting to show")
+  private long skip = 0;
+
+  @Option(names = "--since", description = "show commits not older than the date, like 2018-10-01 or 2018-10-01T12:00")
+  private String since = null;
+
   @Override
   public Void call() {
-    System.out.println(git.log(from_revision == null ? "HEAD" : from_revision));
+    git.log(from_revision == null ? "HEAD" : from_revision,
+        skip, maxCount == null ? Long.MAX_VALUE : maxCount, parseDate(since), System.out::print);
     return null;
   }
+
+  /**
+   * The date is taken in the local zone, commits made in other zones are compared by their instants
+   */
+  private static OffsetDateTime parseDate(String date) {
+    if (date == null) {
+      return null;
+    }
+
+    try {
+      LocalDateTime local = date.contains("T") ? LocalDateTime.parse(date) : LocalDate.parse(date).atStartOfDay();
+      return local.atZone(ZoneId.systemDefault()).toOffsetDateTime();
+    } catch (DateTimeParseException e) {
+      throw new GitException("Can't parse date " + date);
+    }
+  }
 }
@@ -22,9 +22,12 @@ public class Merge implements Callable<Void> {
   @Option(names = "--force", description = "force merging")
   private boolean force;
 
+  @Option(names = "--progress", description = "show the number of written files")
+  private boolean progress;
+
   @Override
   public Void call() {
-    git.merge(branchName, force);
+    git.merge(branchName, force, progress);
     return null;
   }
 }
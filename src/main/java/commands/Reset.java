@@ -3,6 +3,7 @@ package commands;
 import git.Git;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 
 import java.util.concurrent.Callable;
 
@@ -17,9 +18,15 @@ public class Reset implements Callable<Void> {
   @CommandLine.Parameters(index = "0", description = "Branch name or revision's hash")
   private String to_revision = null;
 
+  @Option(names = "--progress", description = "show the number of written files")
+  private boolean progress;
+
+  @Option(names = "--no-gc", description = "leave unreachable objects till the next gc")
+  private boolean noGc;
+
   @Override
   public Void call() {
-    git.reset(to_revision);
+    git.reset(to_revision, progress, !noGc);
     return null;
   }
 }
@@ -2,6 +2,8 @@ package commands;
 
 import git.Git;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import util.Workers;
 
 import java.util.concurrent.Callable;
 
@@ -13,9 +15,12 @@ public class Status implements Callable<Void> {
     this.git = git;
   }
 
+  @Option(names = {"-j", "--jobs"}, description = "number of threads to scan and hash files with")
+  private Integer jobs = null;
+
   @Override
   public Void call() {
-    git.status();
+    Workers.withThreads(jobs, git::status);
     return null;
   }
 }
@@ -4,22 +4,25 @@ import git.branches.BranchManager;
 import git.commits.Commit;
 import git.commits.CommitsManager;
 import git.repo.Blob;
+import git.repo.RepositoryLock;
 import git.repo.RepositoryManager;
+import git.repo.Sweep;
 import git.revisions.Revision;
 import git.revisions.RevisionManager;
 import git.trees.Tree;
 import git.trees.TreeManager;
+import org.apache.commons.io.FileUtils;
+import util.Progress;
 
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Collection;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static java.util.Arrays.asList;
@@ -31,47 +34,163 @@ public class Git {
   private static final String HEAD = "HEAD";
   private static final String REF = "ref: ";
   private static final DateTimeFormatter DATE_FORMATTER =
-      DateTimeFormatter.ofPattern("E MMM d HH:mm:ss yyyy");
-  public static File ROOT = Paths.get(".").toAbsolutePath().normalize().toFile();
+      DateTimeFormatter.ofPattern("E MMM d HH:mm:ss yyyy Z");
+  private static final Path WHOLE_WORKING_DIR = Paths.get("");
 
-  public static Path toRelativePath(File file) {
-    return ROOT.toPath().relativize(file.getAbsoluteFile().toPath().normalize());
-  }
+  /**
+   * Working directory, files passed to commands are taken relative to it
+   */
+  private final Path root;
+  private final RepositoryManager repo;
 
+  /**
+   * HEAD and the index are read on first access within a command
+   */
   private Revision head;
+  private boolean headLoaded = false;
   private Tree index;
+  private boolean indexLoaded = false;
 
-  private RepositoryManager repo;
-  private RevisionManager revisions;
-  private BranchManager branches;
-  private TreeManager trees;
-  private CommitsManager commits;
+  /**
+   * Managers are built on first access, so that a command builds only those it needs
+   */
+  private RevisionManager revisions = null;
+  private BranchManager branches = null;
+  private TreeManager trees = null;
+  private CommitsManager commits = null;
 
 
-  public Git(RepositoryManager repo) {
+  /**
+   * Nothing is read from the repository until a command needs it
+   *
+   * @param repo where objects, refs and working files are kept
+   * @param root working directory of the repository
+   */
+  public Git(RepositoryManager repo, File root) {
     this.repo = repo;
+    this.root = root.getAbsoluteFile().toPath().normalize();
+  }
+
+  private TreeManager getTrees() {
+    if (trees == null) {
+      trees = new TreeManager(repo);
+    }
+    return trees;
+  }
 
-    trees = new TreeManager(repo);
-    commits = new CommitsManager(repo, trees);
-    branches = new BranchManager(repo);
-    revisions = new RevisionManager(branches, commits);
+  private CommitsManager getCommits() {
+    if (commits == null) {
+      commits = new CommitsManager(repo, getTrees());
+    }
+    return commits;
+  }
 
-    loadHeadFromRepository();
-    loadIndexFromRepository();
-    revisions.setHead(head);
+  private BranchManager getBranches() {
+    if (branches == null) {
+      branches = new BranchManager(repo);
+    }
+    return branches;
   }
 
+  private RevisionManager getRevisions() {
+    if (revisions == null) {
+      revisions = new RevisionManager(getBranches(), getCommits(), this::getHead);
+    }
+    return revisions;
+  }
+
+  private Revision getHead() {
+    if (!headLoaded) {
+      loadHeadFromRepository();
+      headLoaded = true;
+    }
+    return head;
+  }
 
-  public void init() {
-    repo.initialize();
+  private Tree getIndex() {
+    if (!indexLoaded) {
+      loadIndexFromRepository();
+      indexLoaded = true;
+    }
+    return index;
+  }
 
-    // new empty index
-    index = trees.createEmpty();
-    setNewGlobalIndexPointer();
+  /**
+   * Run a command, that only reads the repository, while no one writes it
+   */
+  private void reading(Runnable command) {
+    migrateLegacyBranches();
+    try (RepositoryLock.Held ignored = repo.getLock().shared()) {
+      loadState();
+      command.run();
+    }
+  }
 
-    Commit initial = commits.newInitialCommit(index);
-    branches.set(MASTER, initial);
-    setAsHead(revisions.fromBranch(MASTER));
+  /**
+   * Run a command, that changes HEAD, the index or refs, while no one else reads or writes the repository
+   */
+  private void writing(Runnable command) {
+    try (RepositoryLock.Held ignored = repo.getLock().exclusive()) {
+      loadState();
+      getBranches().migrateLegacyBranches();
+      command.run();
+    }
+  }
+
+  /**
+   * Branches of older repositories are moved to refs before a reading command takes the shared lock
+   */
+  private void migrateLegacyBranches() {
+    if (getBranches().hasLegacyBranches()) {
+      try (RepositoryLock.Held ignored = repo.getLock().exclusive()) {
+        getBranches().migrateLegacyBranches();
+      }
+    }
+  }
+
+  /**
+   * Stat data found by a reading command is saved afterwards, as the stat cache is written under the exclusive lock
+   */
+  private void saveStats() {
+    if (getTrees().getStats().isChanged()) {
+      try (RepositoryLock.Held ignored = repo.getLock().exclusive()) {
+        getTrees().getStats().save();
+      }
+    }
+  }
+
+  /**
+   * Read HEAD, the index, refs and the list of packs again on first access,
+   * as other processes may have changed them since the last command
+   */
+  private void loadState() {
+    repo.refresh();
+    if (branches != null) {
+      branches.reload();
+    }
+    if (commits != null) {
+      commits.reload();
+    }
+    headLoaded = false;
+    indexLoaded = false;
+  }
+
+
+  /**
+   * @param hasher hash function of objects of the new repository
+   */
+  public void init(Hasher hasher) {
+    try (RepositoryLock.Held ignored = repo.getLock().exclusive()) {
+      repo.initialize(hasher);
+
+      // new empty index
+      index = getTrees().createEmpty();
+      setNewGlobalIndexPointer();
+
+      Commit initial = getCommits().newInitialCommit(getIndex());
+      getBranches().set(MASTER, initial);
+      setAsHead(getRevisions().fromBranch(MASTER));
+    }
   }
 
   /**
@@ -79,9 +198,11 @@ public class Git {
    * so that they will appear in a new revision.<br>
    */
   public void addToIndex(List<File> files) {
-    files.forEach(index::add);
-    trees.dump(index);
-    setNewGlobalIndexPointer();
+    writing(() -> {
+      getIndex().addAll(toRelativePaths(files));
+      setNewGlobalIndexPointer();
+      getTrees().getStats().save();
+    });
   }
 
   /**
@@ -89,9 +210,10 @@ public class Git {
    * they won't be tracked.<br>
    */
   public void removeFromIndex(List<File> files) {
-    files.forEach(index::remove);
-    trees.dump(index);
-    setNewGlobalIndexPointer();
+    writing(() -> {
+      toRelativePaths(files).forEach(getIndex()::remove);
+      setNewGlobalIndexPointer();
+    });
   }
 
   /**
@@ -101,19 +223,16 @@ public class Git {
    * @param message short string that describes the message
    */
   public void commit(String message) {
-    if (!head.getCommit().getTree().differs(index)) {
-      System.out.println("Nothing to commit");
-      return;
-    }
-
-    String parentCommitHash = head.getCommit().getIdentifier();
-    Commit fresh = commits.build(message, index, LocalDateTime.now(), asList(parentCommitHash));
-
-    if (head.isBranch()) {
-      head.getBranch().pinTo(fresh);
-    } else {
-      setAsHead(revisions.fromCommit(fresh));
-    }
+    writing(() -> {
+      if (getHead().getCommit().getTreeId().equals(getIndex().getIdentifier())) {
+        System.out.println("Nothing to commit");
+        return;
+      }
+
+      ObjectId parentCommitHash = getHead().getCommit().getIdentifier();
+      Commit fresh = getCommits().build(message, getIndex(), OffsetDateTime.now(), asList(parentCommitHash));
+      moveHeadTo(fresh);
+    });
   }
 
   /**
@@ -121,60 +240,79 @@ public class Git {
    * Moves the current branch label.
    *
    * @param hashOrBranchName hash or branch of the revision to checkout
+   * @param showProgress     print the number of written files
+   * @param collectGarbage   clean objects left unreachable, otherwise they stay till the next gc
    */
-  public void reset(String hashOrBranchName) throws GitException {
-    if (!head.isBranch()) {
-      throw new GitException("Can't reset in detached state");
-    }
-
-    Commit toCommit = revisions.get(hashOrBranchName).getCommit();
-    Tree futureTree = toCommit.getTree();
-
-    index.migrateTo(futureTree);
-    index = futureTree;
-    setNewGlobalIndexPointer();
-
-    // move branch label
-    head.getBranch().pinTo(toCommit);
-
-    cleanUnreachableCommits();
+  public void reset(String hashOrBranchName, boolean showProgress, boolean collectGarbage) throws GitException {
+    writing(() -> {
+      if (!getHead().isBranch()) {
+        throw new GitException("Can't reset in detached state");
+      }
+
+      Commit toCommit = getRevisions().get(hashOrBranchName).getCommit();
+      Tree futureTree = toCommit.getTree();
+
+      getIndex().migrateTo(futureTree, progress(showProgress));
+      index = futureTree;
+      setNewGlobalIndexPointer();
+
+      // move branch label
+      moveHeadTo(toCommit);
+
+      if (collectGarbage) {
+        gc(false, false);
+      }
+    });
   }
 
   public void status() {
-    System.out.println(head.isBranch()
-        ? "On branch " + head.getBranch().getName()
-        : "Detached HEAD");
-
-    Tree headTree = head.getCommit().getTree();
-    Collection<Path> newFiles = index.getPathsThatAreNotIn(headTree);
-    Collection<Path> modified = index.intersectPathWithDifferentVersions(headTree);
-    Collection<Path> deleted = headTree.getPathsThatAreNotIn(index);
-
-    Tree current = trees.create().addAll(repo.listWorkingDir(ROOT));
-    Collection<Path> notStaged = index.intersectPathWithDifferentVersions(current);
-    Collection<Path> removed = index.getPathsThatAreNotIn(current);
-    Collection<Path> untracked = current.getPathsThatAreNotIn(index);
-
-    if (!newFiles.isEmpty() || !modified.isEmpty() || !deleted.isEmpty()) {
-      System.out.println("Changes to be commited:\n");
-      display(newFiles, GREEN, "new file:  ");
-      display(modified, GREEN, "modified:  ");
-      display(deleted, GREEN, "deleted:   ");
-      System.out.println();
-    }
+    reading(() -> {
+      System.out.println(getHead().isBranch()
+          ? "On branch " + getHead().getBranch().getName()
+          : "Detached HEAD");
+
+      Tree headTree = getHead().getCommit().getTree();
+      Collection<Path> newFiles = getIndex().getPathsThatAreNotIn(headTree);
+      Collection<Path> modified = getIndex().intersectPathWithDifferentVersions(headTree);
+      Collection<Path> deleted = headTree.getPathsThatAreNotIn(getIndex());
+
+      Tree current = getTrees().scan(repo.listWorkingDir(WHOLE_WORKING_DIR));
+      Collection<Path> notStaged = getIndex().intersectPathWithDifferentVersions(current);
+      Collection<Path> removed = getIndex().getPathsThatAreNotIn(current);
+      Collection<Path> untracked = current.getPathsThatAreNotIn(getIndex());
+
+      if (!newFiles.isEmpty() || !modified.isEmpty() || !deleted.isEmpty()) {
+        System.out.println("Changes to be commited:\n");
+        display(newFiles, GREEN, "new file:  ");
+        display(modified, GREEN, "modified:  ");
+        display(deleted, GREEN, "deleted:   ");
+        System.out.println();
+      }
+
+      if (!notStaged.isEmpty() || !removed.isEmpty()) {
+        System.out.println("Changes not staged for commit:\n");
+        display(notStaged, RED, "modified:  ");
+        display(removed, RED, "deleted:   ");
+        System.out.println();
+      }
+
+      if (!untracked.isEmpty()) {
+        System.out.println("Untracked files:\n");
+        display(untracked, RED, "");
+        System.out.println();
+      }
+    });
+    saveStats();
+  }
 
-    if (!notStaged.isEmpty() || !removed.isEmpty()) {
-      System.out.println("Changes not staged for commit:\n");
-      display(notStaged, RED, "modified:  ");
-      display(removed, RED, "deleted:   ");
-      System.out.println();
-    }
+  private List<Path> toRelativePaths(List<File> files) {
+    return files.stream()
+        .map(file -> root.relativize(root.resolve(file.toPath()).normalize()))
+        .collect(Collectors.toList());
+  }
 
-    if (!untracked.isEmpty()) {
-      System.out.println("Untracked files:\n");
-      display(untracked, RED, "");
-      System.out.println();
-    }
+  private Progress progress(boolean show) {
+    return show ? new Progress("Updating files") : Progress.NONE;
   }
 
   private void display(Collection<Path> paths, String color, String title) {
@@ -184,46 +322,35 @@ public class Git {
   }
 
   /**
-   * Get detailed history of commits from the revision to the root.
+   * Print detailed history of commits from the revision to the root,
+   * each commit is printed as soon as the walk reaches it.
    *
    * @param hashOrBranchName hash / branch of the revision to log from
-   * @return log in string representation
+   * @param skip             number of the newest commits to leave out
+   * @param maxCount         maximum number of commits to print
+   * @param since            stop at the first commit older than it, or null
+   * @param out              receives formatted commits one by one
    */
-  public String log(String hashOrBranchName) {
-    Revision fromWhere = hashOrBranchName.isEmpty() ? head : revisions.get(hashOrBranchName);
-    return log(fromWhere);
+  public void log(String hashOrBranchName, long skip, long maxCount, OffsetDateTime since, Consumer<String> out) {
+    reading(() -> {
+      Revision fromWhere = hashOrBranchName.isEmpty() ? getHead() : getRevisions().get(hashOrBranchName);
+
+      ObjectId headId = getHead().getCommit().getIdentifier();
+      getCommits().walk(fromWhere.getCommit(), since)
+          .skip(skip)
+          .limit(maxCount)
+          .map(commit -> formatCommit(commit, headId))
+          .forEach(out);
+    });
   }
 
-  /**
-   * Get detailed history of commits from the revision to the root.
-   *
-   * @param fromRevision the revision to log from
-   * @return log in string representation
-   */
-  private String log(Revision fromRevision) {
-    StringBuilder result = new StringBuilder();
-
-    commits
-        .pickAllToRoot(fromRevision.getCommit()).stream()
-        .sorted(Comparator.comparing(Commit::getDate).reversed())
-        .map(this::formatCommit)
-        .forEach(result::append);
+  private String formatCommit(Commit commit, ObjectId headId) {
+    ObjectId currentId = commit.getIdentifier();
 
-    return result.toString();
-  }
+    List<String> labels = getBranches().getNamesPointingTo(currentId);
+    String branchLabels = labels.isEmpty() ? "" : " (" + String.join(", ", labels) + ")";
 
-  private String formatCommit(Commit commit) {
-    String currentId = commit.getIdentifier();
-
-    String labels = branches.stream()
-        .filter(e -> e.getValue().equals(currentId))
-        .map(Entry::getKey)
-        .collect(Collectors.joining(", "));
-
-    String branchLabels = labels.isEmpty() ? "" : " (" + labels + ")";
-
-    boolean isHead = head.getCommit().equals(commit);
-    String headLabel = isHead ? " [HEAD]" : "";
+    String headLabel = currentId.equals(headId) ? " [HEAD]" : "";
 
     String date = commit.getDate().format(DATE_FORMATTER);
 
@@ -234,24 +361,75 @@ public class Git {
   }
 
   /**
-   * Clean objects, that are unreachable from all branches
-   * or HEAD. This includes: commits, trees, blobs.
+   * Clean objects, that are unreachable from all branches, HEAD
+   * or the index. This includes: commits, trees, blobs.<br>
+   * Loose branch refs are moved to the packed ones.<br>
+   * Reachable identifiers are marked reading only commit graph and tree entries,
+   * then unmarked objects of each kind are deleted in parallel.
+   *
+   * @param pack   move the reachable objects to a single pack
+   * @param report print the number of objects, freed bytes and timings
    */
-  private void cleanUnreachableCommits() {
-    Set<Commit> usedCommits = commits.pickAllToRoot(branches.getItsCommits(commits));
-
-    Set<Tree> usedTrees = usedCommits.stream()
-        .map(Commit::getTree)
-        .collect(Collectors.toSet());
-
-    Set<Blob> usedBlobs = usedTrees.stream()
-        .flatMap(t -> t.getBlobIds().values().stream())
-        .map(blobId -> Blob.getByIdentifier(blobId, repo))
-        .collect(Collectors.toSet());
+  public void gc(boolean pack, boolean report) {
+    writing(() -> {
+      long started = System.nanoTime();
+
+      Set<ObjectId> roots = new LinkedHashSet<>();
+      getBranches().forEach(branch -> roots.add(branch.getCommitId()));
+      roots.add(getHead().getCommit().getIdentifier());
+
+      // newest first, so that older versions of files are packed as deltas of newer ones
+      List<ObjectId> usedCommits = getCommits().reachableIds(roots);
+      Set<ObjectId> usedTrees = new LinkedHashSet<>();
+      Set<ObjectId> usedBlobs = new HashSet<>();
+      Map<Path, List<ObjectId>> blobVersions = new LinkedHashMap<>();
+      BiConsumer<Path, ObjectId> markBlob = (path, blobId) -> {
+        if (usedBlobs.add(blobId)) {
+          blobVersions.computeIfAbsent(path, p -> new ArrayList<>()).add(blobId);
+        }
+      };
+
+      getTrees().mark(getIndex().getIdentifier(), usedTrees, markBlob);
+      usedCommits.forEach(commitId -> getTrees().mark(getCommits().getTreeIdOf(commitId), usedTrees, markBlob));
+      long marked = System.nanoTime();
+
+      List<Sweep> sweeps = asList(
+          getCommits().cleanAllExcept(new HashSet<>(usedCommits)),
+          getTrees().cleanAllExcept(usedTrees),
+          Blob.cleanAllExcept(usedBlobs, repo));
+      getCommits().saveGraph(usedCommits);
+      getBranches().pack();
+      long swept = System.nanoTime();
+
+      if (pack) {
+        Map<String, Collection<List<ObjectId>>> chainsByKind = new LinkedHashMap<>();
+        chainsByKind.put(CommitsManager.COMMITS_PATH, usedCommits.stream()
+            .map(Collections::singletonList)
+            .collect(Collectors.toList()));
+        chainsByKind.put(TreeManager.TREES_PATH, usedTrees.stream()
+            .map(Collections::singletonList)
+            .collect(Collectors.toList()));
+        chainsByKind.put(Blob.BLOBS_PATH, blobVersions.values());
+        repo.pack(chainsByKind);
+      }
+      long packed = System.nanoTime();
+
+      if (report) {
+        System.out.printf("Marked %d commits, %d trees, %d blobs in %d ms%n",
+            usedCommits.size(), usedTrees.size(), usedBlobs.size(), millis(started, marked));
+        System.out.printf("Removed %d commits, %d trees, %d blobs, freed %s in %d ms%n",
+            sweeps.get(0).getRemoved(), sweeps.get(1).getRemoved(), sweeps.get(2).getRemoved(),
+            FileUtils.byteCountToDisplaySize(sweeps.stream().mapToLong(Sweep::getFreedBytes).sum()),
+            millis(marked, swept));
+        if (pack) {
+          System.out.printf("Packed in %d ms%n", millis(swept, packed));
+        }
+      }
+    });
+  }
 
-    commits.cleanAllExcept(usedCommits);
-    trees.cleanAllExcept(usedTrees);
-    Blob.cleanAllExcept(usedBlobs, repo);
+  private static long millis(long fromNanos, long toNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(toNanos - fromNanos);
   }
 
   /**
@@ -260,35 +438,53 @@ public class Git {
    * @param hashOrBranchName hash or branch of the revision to checkout
    */
   public void checkout(String hashOrBranchName) {
-    Revision toRevision = revisions.get(hashOrBranchName);
-    Tree futureTree = toRevision.getCommit().getTree();
+    checkout(hashOrBranchName, false);
+  }
+
+  /**
+   * Update index & file system as they are in the revision.
+   *
+   * @param hashOrBranchName hash or branch of the revision to checkout
+   * @param showProgress     print the number of written files
+   */
+  public void checkout(String hashOrBranchName, boolean showProgress) {
+    writing(() -> {
+      Revision toRevision = getRevisions().get(hashOrBranchName);
+      Tree futureTree = toRevision.getCommit().getTree();
 
-    index.migrateTo(futureTree);
-    index = futureTree;
-    setNewGlobalIndexPointer();
+      getIndex().migrateTo(futureTree, progress(showProgress));
+      index = futureTree;
+      setNewGlobalIndexPointer();
 
-    setAsHead(toRevision);
+      setAsHead(toRevision);
+    });
   }
 
   public void checkoutFiles(String hashOrBranchName, List<File> files) {
-    Revision toRevision = revisions.get(hashOrBranchName);
-    Tree futureTree = toRevision.getCommit().getTree();
+    writing(() -> {
+      Revision toRevision = getRevisions().get(hashOrBranchName);
+      Tree futureTree = toRevision.getCommit().getTree();
 
-    index.migrateFilesTo(futureTree, files);
-    setNewGlobalIndexPointer();
+      getIndex().migrateFilesTo(futureTree, toRelativePaths(files));
+      setNewGlobalIndexPointer();
+    });
   }
 
   public void createBranch(String branchName, String hashOrBranchName) {
-    Revision toWhere = hashOrBranchName.isEmpty() ? head : revisions.get(hashOrBranchName);
-    branches.set(branchName, toWhere.getCommit());
-    checkout(branchName);
+    writing(() -> {
+      Revision toWhere = hashOrBranchName.isEmpty() ? getHead() : getRevisions().get(hashOrBranchName);
+      getBranches().set(branchName, toWhere.getCommit());
+      checkout(branchName);
+    });
   }
 
   public void deleteBranch(String branchName) {
-    if (head.isBranch() && head.getBranch().getName().equals(branchName))
-      throw new GitException("Can't delete the branch where HEAD points to");
+    writing(() -> {
+      if (getHead().isBranch() && getHead().getBranch().getName().equals(branchName))
+        throw new GitException("Can't delete the branch where HEAD points to");
 
-    branches.delete(branchName);
+      getBranches().delete(branchName);
+    });
   }
 
   /**
@@ -298,9 +494,23 @@ public class Git {
   private void setAsHead(Revision revision) {
     String content = revision.isBranch()
         ? REF + revision.getBranch().getName()
-        : revision.getCommit().getIdentifier();
+        : revision.getCommit().getIdentifier().toHex();
 
     repo.saveString(HEAD, content);
+    head = revision;
+    headLoaded = true;
+  }
+
+  /**
+   * Moves the current branch label to the commit, or the HEAD itself in detached state
+   */
+  private void moveHeadTo(Commit commit) {
+    if (getHead().isBranch()) {
+      getHead().getBranch().pinTo(commit);
+      head = new Revision(commit, head.getBranch());
+    } else {
+      setAsHead(getRevisions().fromCommit(commit));
+    }
   }
 
   /**
@@ -314,51 +524,62 @@ public class Git {
         ? content.substring(REF.length()) : content;
 
     head = hashOrBranchName == null || hashOrBranchName.isEmpty()
-        ? null : revisions.get(hashOrBranchName);
+        ? null : getRevisions().get(hashOrBranchName);
   }
 
   /**
-   * Initializes the index tree.<br>
+   * Initializes the index tree, unless it is loaded already.<br>
    * Information is got from a file in the repository.
    */
   private void loadIndexFromRepository() {
-    String indexTreePath = repo.loadString(INDEX);
-    if (indexTreePath != null && !indexTreePath.isEmpty()) {
-      index = trees.load(indexTreePath);
+    String indexTreeId = repo.loadString(INDEX);
+    if (indexTreeId == null || indexTreeId.isEmpty()) {
+      return;
+    }
+
+    ObjectId identifier = ObjectId.fromHex(indexTreeId);
+    if (index == null || !index.getIdentifier().equals(identifier)) {
+      index = getTrees().load(identifier);
     }
   }
 
+  /**
+   * Dumps the index tree and saves a pointer to it in the repository.
+   */
   private void setNewGlobalIndexPointer() {
-    repo.saveString(INDEX, trees.getIdentifier(index));
+    getTrees().dump(index);
+    repo.saveString(INDEX, index.getIdentifier().toHex());
+    indexLoaded = true;
   }
 
-  public void merge(String branchName, boolean mergeIsForced) {
-    if (!head.isBranch()) {
-      throw new GitException("Can't merge in detached state");
-    }
-
-    Commit ours = head.getCommit();
-    Commit their = revisions.fromBranch(branchName).getCommit();
-
-    Set<Commit> commonCommits = commits.pickAllToRoot(ours);
-    commonCommits.retainAll(commits.pickAllToRoot(their));
-
-    Commit LCA = commonCommits.stream()
-        .max(Comparator.comparing(Commit::getDate))
-        .orElseThrow(() -> new GitException("Can't merge branches, there is no LCA"));
-
-    Set<Path> conflictingPaths = index.merge(their.getTree(), LCA.getTree());
-    setNewGlobalIndexPointer();
-
-    if (conflictingPaths.isEmpty() || mergeIsForced) {
-      Commit fresh = commits.build(
-          "Merge " + branchName + " to " + head.getBranch().getName(),
-          index, LocalDateTime.now(), asList(ours.getIdentifier(), their.getIdentifier()));
-      head.getBranch().pinTo(fresh);
-    } else {
-      System.out.println("There are conflicts, resolve them yourself, then run " +
-          c(CYAN, "git merge --force:\n"));
-      display(conflictingPaths, RED, "");
-    }
+  public void merge(String branchName, boolean mergeIsForced, boolean showProgress) {
+    writing(() -> {
+      if (!getHead().isBranch()) {
+        throw new GitException("Can't merge in detached state");
+      }
+
+      Commit ours = getHead().getCommit();
+      Commit their = getRevisions().fromBranch(branchName).getCommit();
+
+      Commit LCA = getCommits().mergeBase(ours, their);
+      if (LCA == null) {
+        throw new GitException("Can't merge branches, there is no LCA");
+      }
+
+      Set<Path> conflictingPaths = getIndex().merge(their.getTree(), LCA.getTree(),
+          getHead().getBranch().getName(), branchName, !mergeIsForced, progress(showProgress));
+      setNewGlobalIndexPointer();
+
+      if (conflictingPaths.isEmpty() || mergeIsForced) {
+        Commit fresh = getCommits().build(
+            "Merge " + branchName + " to " + getHead().getBranch().getName(),
+            getIndex(), OffsetDateTime.now(), asList(ours.getIdentifier(), their.getIdentifier()));
+        moveHeadTo(fresh);
+      } else {
+        System.out.println("There are conflicts, resolve them yourself, add the files, then run " +
+            c(CYAN, "git merge --force:\n"));
+        display(conflictingPaths, RED, "");
+      }
+    });
   }
 }
@@ -1,9 +1,158 @@
 package git;
 
+import org.apache.commons.codec.digest.Blake3;
 import org.apache.commons.codec.digest.DigestUtils;
 
-public class Hasher {
-  public static String hashHex(String data) {
-    return DigestUtils.sha1Hex(data);
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Hash function of a repository, chosen once by <tt>gi init</tt>.<br>
+ * SHA-1 and SHA-256 go through the JDK digests, that the JIT replaces
+ * with SHA instructions of the processor, where there are any.
+ */
+public abstract class Hasher {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  public static final Hasher SHA1 = new JdkHasher("sha1", "SHA-1", 20);
+  public static final Hasher SHA256 = new JdkHasher("sha256", "SHA-256", 32);
+  public static final Hasher BLAKE3 = new Blake3Hasher();
+
+  /**
+   * Hash of repositories created before the hash could be chosen
+   */
+  public static final Hasher DEFAULT = SHA1;
+
+  private final String name;
+  private final int idLength;
+
+  private Hasher(String name, int idLength) {
+    this.name = name;
+    this.idLength = idLength;
+  }
+
+  public static Hasher forName(String name) {
+    for (Hasher hasher : new Hasher[]{SHA1, SHA256, BLAKE3}) {
+      if (hasher.name.equalsIgnoreCase(name)) return hasher;
+    }
+    throw new GitException("Unknown hash " + name + ", use one of sha1, sha256, blake3");
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Size of a raw identifier in bytes
+   */
+  public int getIdLength() {
+    return idLength;
+  }
+
+  public abstract Digest newDigest();
+
+  public ObjectId hash(byte[] data) {
+    Digest digest = newDigest();
+    digest.update(data, 0, data.length);
+    return digest.finish();
+  }
+
+  public ObjectId hash(InputStream data) throws IOException {
+    Digest digest = newDigest();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for (int read; (read = data.read(buffer)) >= 0; ) {
+      digest.update(buffer, 0, read);
+    }
+    return digest.finish();
+  }
+
+  /**
+   * Incremental hashing of content, that is streamed rather than held in memory
+   */
+  public interface Digest {
+    void update(byte[] data, int offset, int length);
+
+    ObjectId finish();
+  }
+
+  /**
+   * Hashes everything read through it
+   */
+  public static class HashingInputStream extends FilterInputStream {
+    private final Digest digest;
+
+    public HashingInputStream(InputStream in, Digest digest) {
+      super(in);
+      this.digest = digest;
+    }
+
+    @Override public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) digest.update(new byte[]{(byte) b}, 0, 1);
+      return b;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = in.read(buffer, offset, length);
+      if (read > 0) digest.update(buffer, offset, read);
+      return read;
+    }
+
+    @Override public long skip(long n) throws IOException {
+      byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+      int read = read(buffer, 0, buffer.length);
+      return Math.max(read, 0);
+    }
+
+    @Override public boolean markSupported() {
+      return false;
+    }
+
+    public Digest getDigest() {
+      return digest;
+    }
+  }
+
+  private static class JdkHasher extends Hasher {
+    private final String algorithm;
+
+    JdkHasher(String name, String algorithm, int idLength) {
+      super(name, idLength);
+      this.algorithm = algorithm;
+    }
+
+    @Override public Digest newDigest() {
+      MessageDigest digest = DigestUtils.getDigest(algorithm);
+      return new Digest() {
+        @Override public void update(byte[] data, int offset, int length) {
+          digest.update(data, offset, length);
+        }
+
+        @Override public ObjectId finish() {
+          return ObjectId.fromRaw(digest.digest());
+        }
+      };
+    }
+  }
+
+  private static class Blake3Hasher extends Hasher {
+    Blake3Hasher() {
+      super("blake3", 32);
+    }
+
+    @Override public Digest newDigest() {
+      Blake3 digest = Blake3.initHash();
+      return new Digest() {
+        @Override public void update(byte[] data, int offset, int length) {
+          digest.update(data, offset, length);
+        }
+
+        @Override public ObjectId finish() {
+          return ObjectId.fromRaw(digest.doFinalize(getIdLength()));
+        }
+      };
+    }
   }
 }
@@ -1,17 +1,75 @@
 package git;
 
 import commands.*;
-import git.repo.FileRepositoryManager;
+import git.daemon.DaemonClient;
+import git.repo.CachingRepositoryManager;
+import git.repo.PackedRepositoryManager;
 import picocli.CommandLine;
 
+import java.io.File;
+
 import static picocli.CommandLine.Command;
 import static picocli.CommandLine.RunAll;
 
 @Command(name = "gi", mixinStandardHelpOptions = true, version = "gi version 0.2")
 public class Main implements Runnable {
+  private static final String CACHE_STATS_PROPERTY = "gi.cache.stats";
+  private static final String LOCK_STATS_PROPERTY = "gi.lock.stats";
+
+  /**
+   * Set to false to run the command in this process, even if a daemon is running
+   */
+  private static final String DAEMON_PROPERTY = "gi.daemon";
+  private static final String DAEMON_COMMAND = "daemon";
+
   public static void main(String[] args) {
-    Git git = new Git(new FileRepositoryManager());
+    File root = new File(".");
+
+    Integer code = isForwarded(args) ? DaemonClient.forward(root.toPath(), args) : null;
+    if (code == null) {
+      code = executeHere(root, args);
+    }
+    exit(code);
+  }
+
+  private static int executeHere(File root, String[] args) {
+    CachingRepositoryManager repo = new CachingRepositoryManager(new PackedRepositoryManager(root.toPath()));
+    Git git = new Git(repo, root);
+    int code = execute(git, args);
+
+    if (Boolean.getBoolean(CACHE_STATS_PROPERTY)) {
+      System.err.println(repo);
+    }
+    if (Boolean.getBoolean(LOCK_STATS_PROPERTY)) {
+      System.err.println(repo.getLock());
+    }
+    return code;
+  }
+
+  /**
+   * The same exit code, whether the command ran here or in the daemon
+   */
+  private static void exit(int code) {
+    if (code != 0) {
+      System.exit(code);
+    }
+  }
+
+  /**
+   * Commands are sent to a running daemon, unless it's the daemon to start
+   */
+  private static boolean isForwarded(String[] args) {
+    return args.length > 0
+        && !args[0].equals(DAEMON_COMMAND)
+        && !"false".equals(System.getProperty(DAEMON_PROPERTY));
+  }
 
+  /**
+   * Parse the command line and run the command over the repository
+   *
+   * @return exit code of the command
+   */
+  public static int execute(Git git, String[] args) {
     CommandLine cli = new CommandLine(new Main())
         .addSubcommand("init", new Init(git))
         .addSubcommand("add", new Add(git))
@@ -22,12 +80,16 @@ public class Main implements Runnable {
         .addSubcommand("log", new Log(git))
         .addSubcommand("checkout", new Checkout(git))
         .addSubcommand("merge", new Merge(git))
-        .addSubcommand("branch", new Branch(git));
+        .addSubcommand("branch", new Branch(git))
+        .addSubcommand("gc", new Gc(git))
+        .addSubcommand(DAEMON_COMMAND, new Daemon());
 
     try {
       cli.parseWithHandler(new RunAll(), args);
+      return 0;
     } catch (CommandLine.ExecutionException e) {
       System.err.println(e.getCause().getMessage());
+      return 1;
     }
   }
 
@@ -0,0 +1,190 @@
+package git;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Identifier of a stored object, the raw 20 or 32 bytes of its hash.<br>
+ * Bytes are kept in primitive fields: the first 20 in <tt>w1</tt>, <tt>w2</tt>, <tt>w3</tt>,
+ * the last 12 of longer ids in <tt>w4</tt>, <tt>w5</tt> of a subclass, so that 20-byte ids don't carry them.
+ * That is several times less heap than a hex string, and equality is a few comparisons of numbers.
+ */
+public abstract class ObjectId implements Comparable<ObjectId> {
+  public static final int SHORT_LENGTH = 20;
+  public static final int LONG_LENGTH = 32;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final long w1;
+  private final long w2;
+  private final int w3;
+
+  private ObjectId(long w1, long w2, int w3) {
+    this.w1 = w1;
+    this.w2 = w2;
+    this.w3 = w3;
+  }
+
+  public static ObjectId fromRaw(byte[] raw) {
+    return read(ByteBuffer.wrap(raw), raw.length);
+  }
+
+  /**
+   * Read <tt>length</tt> raw bytes from the buffer
+   */
+  public static ObjectId read(ByteBuffer buffer, int length) {
+    if (length != SHORT_LENGTH && length != LONG_LENGTH) {
+      throw new GitException("Identifiers are " + SHORT_LENGTH + " or " + LONG_LENGTH + " bytes long, not " + length);
+    }
+
+    long w1 = buffer.getLong();
+    long w2 = buffer.getLong();
+    int w3 = buffer.getInt();
+    return length == SHORT_LENGTH
+        ? new ShortId(w1, w2, w3)
+        : new LongId(w1, w2, w3, buffer.getLong(), buffer.getInt());
+  }
+
+  public static ObjectId fromHex(String hex) {
+    if (hex.length() != 2 * SHORT_LENGTH && hex.length() != 2 * LONG_LENGTH) {
+      throw new GitException(hex + " is not a valid identifier");
+    }
+
+    byte[] raw = new byte[hex.length() / 2];
+    for (int i = 0; i < raw.length; i++) {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new GitException(hex + " is not a valid identifier");
+      }
+      raw[i] = (byte) (high << 4 | low);
+    }
+    return fromRaw(raw);
+  }
+
+  /**
+   * @return whether the string is a full identifier in hex
+   */
+  public static boolean isHex(String hex) {
+    if (hex.length() != 2 * SHORT_LENGTH && hex.length() != 2 * LONG_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < hex.length(); i++) {
+      if (Character.digit(hex.charAt(i), 16) < 0) return false;
+    }
+    return true;
+  }
+
+  public abstract int length();
+
+  public void write(ByteBuffer buffer) {
+    buffer.putLong(w1).putLong(w2).putInt(w3);
+  }
+
+  public byte[] toRaw() {
+    ByteBuffer buffer = ByteBuffer.allocate(length());
+    write(buffer);
+    return buffer.array();
+  }
+
+  /**
+   * @return the first byte, objects are spread over folders and pack fan-out by it
+   */
+  public int firstByte() {
+    return (int) (w1 >>> 56);
+  }
+
+  public String toHex() {
+    char[] hex = new char[2 * length()];
+    appendDigits(hex);
+    return new String(hex);
+  }
+
+  /**
+   * @return the number of hex digits written
+   */
+  int appendDigits(char[] hex) {
+    int at = appendHex(hex, 0, w1, Long.BYTES);
+    at = appendHex(hex, at, w2, Long.BYTES);
+    return appendHex(hex, at, w3, Integer.BYTES);
+  }
+
+  private static int appendHex(char[] hex, int at, long word, int bytes) {
+    for (int shift = 8 * bytes - 4; shift >= 0; shift -= 4) {
+      hex[at++] = HEX[(int) (word >>> shift) & 0xF];
+    }
+    return at;
+  }
+
+  @Override public int compareTo(ObjectId other) {
+    int cmp = Long.compareUnsigned(w1, other.w1);
+    if (cmp == 0) cmp = Long.compareUnsigned(w2, other.w2);
+    if (cmp == 0) cmp = Integer.compareUnsigned(w3, other.w3);
+    if (cmp == 0) cmp = Integer.compare(length(), other.length());
+    if (cmp == 0 && other instanceof LongId) cmp = ((LongId) this).compareTail((LongId) other);
+    return cmp;
+  }
+
+  @Override public boolean equals(Object obj) {
+    if (this == obj) return true;
+    if (obj == null || obj.getClass() != getClass()) return false;
+
+    ObjectId other = (ObjectId) obj;
+    return w1 == other.w1 && w2 == other.w2 && w3 == other.w3
+        && (!(other instanceof LongId) || ((LongId) this).tailEquals((LongId) other));
+  }
+
+  /**
+   * Bytes of a hash are uniformly distributed already, so any of them will do
+   */
+  @Override public int hashCode() {
+    return (int) w1;
+  }
+
+  @Override public String toString() {
+    return toHex();
+  }
+
+  private static final class ShortId extends ObjectId {
+    ShortId(long w1, long w2, int w3) {
+      super(w1, w2, w3);
+    }
+
+    @Override public int length() {
+      return SHORT_LENGTH;
+    }
+  }
+
+  private static final class LongId extends ObjectId {
+    private final long w4;
+    private final int w5;
+
+    LongId(long w1, long w2, int w3, long w4, int w5) {
+      super(w1, w2, w3);
+      this.w4 = w4;
+      this.w5 = w5;
+    }
+
+    @Override public int length() {
+      return LONG_LENGTH;
+    }
+
+    @Override public void write(ByteBuffer buffer) {
+      super.write(buffer);
+      buffer.putLong(w4).putInt(w5);
+    }
+
+    @Override int appendDigits(char[] hex) {
+      int at = appendHex(hex, super.appendDigits(hex), w4, Long.BYTES);
+      return appendHex(hex, at, w5, Integer.BYTES);
+    }
+
+    int compareTail(LongId other) {
+      int cmp = Long.compareUnsigned(w4, other.w4);
+      return cmp != 0 ? cmp : Integer.compareUnsigned(w5, other.w5);
+    }
+
+    boolean tailEquals(LongId other) {
+      return w4 == other.w4 && w5 == other.w5;
+    }
+  }
+}
@@ -1,28 +1,32 @@
 package git.branches;
 
+import git.ObjectId;
 import git.commits.Commit;
 
 public class Branch {
   private BranchManager manager;
-  private String commitId;
+  private ObjectId commitId;
   private String name;
 
-  public Branch(BranchManager manager, String branchName, String commitId) {
+  public Branch(BranchManager manager, String branchName, ObjectId commitId) {
     this.manager = manager;
     this.commitId = commitId;
     name = branchName;
   }
 
+  /**
+   * Move the branch to the commit, unless someone moved it since it was read
+   */
   public void pinTo(Commit commit) {
+    manager.update(name, commitId, commit.getIdentifier());
     this.commitId = commit.getIdentifier();
-    manager.set(name, commit);
   }
 
   public String getName() {
     return name;
   }
 
-  public String getCommitId() {
+  public ObjectId getCommitId() {
     return commitId;
   }
 }
@@ -2,74 +2,323 @@ package git.branches;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import git.GitException;
+import git.ObjectId;
 import git.commits.Commit;
 import git.commits.CommitsManager;
 import git.repo.RepositoryManager;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class BranchManager implements Iterable<Map.Entry<String, String>> {
-  private static final String BRANCHES_PATH = "branches.json";
+/**
+ * Branches are kept one per file in <tt>refs/heads/</tt> as loose refs, and in {@link PackedRefs},
+ * where gc moves them. A loose ref overrides the packed one of the same name.
+ * Names may have <tt>/</tt>, like <tt>feature/x</tt>, its loose ref is in a subfolder.<br>
+ * Older repositories may have names, that can't be files, like the ones with spaces,
+ * or <tt>a</tt> next to <tt>a/b</tt>: they stay packed and are updated in place.<br>
+ * Every update is a compare-and-swap: the ref is moved only if it still points
+ * where the caller saw it, so that concurrent processes don't lose each other's updates.
+ */
+public class BranchManager implements Iterable<Branch> {
+  private static final String LEGACY_BRANCHES_PATH = "branches.json";
+  private static final String HEADS_PATH = "refs/heads";
+  private static final String LOCK_EXTENSION = ".lock";
   private static final Gson GSON = new Gson();
 
-  private Map<String, String> branches;
+  /**
+   * Read on first request, dropped when this instance rewrites the file
+   */
+  private PackedRefs packed = null;
+
+  /**
+   * Sorted names of branches by commit they point to, built on first request
+   */
+  private Map<ObjectId, List<String>> namesByCommit = null;
   private RepositoryManager repo;
 
   public BranchManager(RepositoryManager repo) {
     this.repo = repo;
-    loadBranches();
+  }
+
+  /**
+   * Forget the packed refs read before, so that changes of other processes are seen
+   */
+  public void reload() {
+    packed = null;
+    namesByCommit = null;
   }
 
   public boolean exists(String branchName) {
-    return branches.containsKey(branchName);
+    return getCommitId(branchName) != null;
   }
 
   public Branch get(String branchName) {
-    return exists(branchName) ? new Branch(this, branchName, branches.get(branchName)) : null;
+    ObjectId commitId = getCommitId(branchName);
+    return commitId != null ? new Branch(this, branchName, commitId) : null;
+  }
+
+  private ObjectId getCommitId(String branchName) {
+    String loose = isValidName(branchName) ? repo.loadString(getRefPath(branchName)) : null;
+    return loose != null ? parse(loose) : getPacked().get(branchName);
   }
 
   /**
    * @return a list of commits, where branches point
    */
   public List<Commit> getItsCommits(CommitsManager manager) {
-    return branches.values().stream().map(manager::load).collect(Collectors.toList());
+    return stream().map(Branch::getCommitId).map(manager::load).collect(Collectors.toList());
   }
 
+  /**
+   * @return sorted names of branches, that point to the commit
+   */
+  public List<String> getNamesPointingTo(ObjectId commitId) {
+    if (namesByCommit == null) {
+      namesByCommit = new HashMap<>();
+      readAll().forEach((name, id) -> namesByCommit.computeIfAbsent(id, k -> new ArrayList<>()).add(name));
+    }
+    return namesByCommit.getOrDefault(commitId, Collections.emptyList());
+  }
+
+  /**
+   * Point the branch to the commit, wherever it points now
+   *
+   * @throws GitException if there is no such branch and the name is invalid, or conflicts with another branch
+   */
   public void set(String branchName, Commit commit) {
-    branches.put(branchName, commit.getIdentifier());
-    dumpBranches();
+    if (!exists(branchName)) {
+      checkNewName(branchName);
+    }
+
+    ObjectId fresh = commit.getIdentifier();
+    if (isLoose(branchName)) {
+      repo.updateString(getRefPath(branchName), content -> fresh.toHex() + "\n");
+    } else {
+      updatePacked(branchName, current -> fresh);
+    }
+    namesByCommit = null;
   }
 
-  public void delete(String branchName) {
-    branches.remove(branchName);
-    dumpBranches();
+  /**
+   * Move the branch, if it still points to <tt>expected</tt>
+   *
+   * @param expected where the branch points, null if it must not exist yet
+   * @throws GitException if the branch was moved by someone else
+   */
+  public void update(String branchName, ObjectId expected, ObjectId fresh) {
+    if (expected == null) {
+      checkNewName(branchName);
+    }
+
+    if (isLoose(branchName)) {
+      repo.updateString(getRefPath(branchName), content -> {
+        ObjectId current = content != null ? parse(content) : readPacked().get(branchName);
+        checkUnmoved(branchName, current, expected);
+        return fresh.toHex() + "\n";
+      });
+    } else {
+      updatePacked(branchName, current -> {
+        checkUnmoved(branchName, current, expected);
+        return fresh;
+      });
+    }
+    namesByCommit = null;
   }
 
-  private void dumpBranches() {
-    repo.saveString(BRANCHES_PATH, GSON.toJson(branches));
+  private static void checkUnmoved(String branchName, ObjectId current, ObjectId expected) {
+    if (!Objects.equals(current, expected)) {
+      throw new GitException("Branch " + branchName + " was moved to " + current +
+          " by another process, expected it at " + expected);
+    }
   }
 
-  private void loadBranches() {
-    String content = repo.loadString(BRANCHES_PATH);
-    branches = GSON.fromJson(content == null || content.isEmpty() ? "{}" : content,
-        new TypeToken<HashMap<String, String>>() {}.getType());
+  /**
+   * Update a branch, that can't have a loose ref, in the packed refs
+   */
+  private void updatePacked(String branchName, UnaryOperator<ObjectId> update) {
+    repo.updateString(PackedRefs.PACKED_REFS_PATH, lines -> {
+      TreeMap<String, ObjectId> refs = new PackedRefs(toBuffer(lines)).readAll();
+      refs.put(branchName, update.apply(refs.get(branchName)));
+      return PackedRefs.format(refs);
+    });
+    packed = null;
+  }
+
+  public void delete(String branchName) {
+    UnaryOperator<String> deletePacked = lines -> {
+      TreeMap<String, ObjectId> refs = new PackedRefs(toBuffer(lines)).readAll();
+      return refs.remove(branchName) == null ? lines : PackedRefs.format(refs);
+    };
+
+    if (isLoose(branchName)) {
+      repo.updateString(getRefPath(branchName), content -> {
+        repo.updateString(PackedRefs.PACKED_REFS_PATH, deletePacked);
+        return null;
+      });
+    } else {
+      repo.updateString(PackedRefs.PACKED_REFS_PATH, deletePacked);
+    }
+    packed = null;
+    namesByCommit = null;
   }
 
   public void pinTo(Branch branch, Commit toCommit) {
-    set(branch.getName(), toCommit);
+    branch.pinTo(toCommit);
+  }
+
+  /**
+   * Move loose refs to the packed ones. Loose refs are removed only if they
+   * still point where they were packed, newer updates stay loose.
+   */
+  public void pack() {
+    Map<String, ObjectId> loose = readLoose();
+    if (loose.isEmpty()) {
+      return;
+    }
+
+    repo.updateString(PackedRefs.PACKED_REFS_PATH, lines -> {
+      TreeMap<String, ObjectId> refs = new PackedRefs(toBuffer(lines)).readAll();
+      refs.putAll(loose);
+      return PackedRefs.format(refs);
+    });
+    packed = null;
+
+    loose.forEach((name, id) -> repo.updateString(getRefPath(name), content ->
+        content != null && id.equals(parse(content)) ? null : content));
   }
 
-  @NotNull @Override public Iterator<Map.Entry<String, String>> iterator() {
-    return branches.entrySet().iterator();
+  @NotNull @Override public Iterator<Branch> iterator() {
+    return stream().iterator();
   }
 
-  @NotNull public Stream<Map.Entry<String, String>> stream() {
-    return branches.entrySet().stream();
+  @NotNull public Stream<Branch> stream() {
+    return readAll().entrySet().stream().map(ref -> new Branch(this, ref.getKey(), ref.getValue()));
+  }
+
+  /**
+   * @return both packed and loose branches, sorted by names
+   */
+  private TreeMap<String, ObjectId> readAll() {
+    TreeMap<String, ObjectId> refs = getPacked().readAll();
+    refs.putAll(readLoose());
+    return refs;
+  }
+
+  private Map<String, ObjectId> readLoose() {
+    Map<String, ObjectId> refs = new HashMap<>();
+    for (Path path : repo.list(HEADS_PATH)) {
+      String name = StreamSupport.stream(path.spliterator(), false).map(Path::toString).collect(Collectors.joining("/"));
+      if (isValidName(name)) {
+        String content = repo.loadString(getRefPath(name));
+        if (content != null) {
+          refs.put(name, parse(content));
+        }
+      }
+    }
+    return refs;
+  }
+
+  private PackedRefs getPacked() {
+    if (packed == null) {
+      packed = readPacked();
+    }
+    return packed;
+  }
+
+  private PackedRefs readPacked() {
+    return new PackedRefs(repo.loadBytes(PackedRefs.PACKED_REFS_PATH));
+  }
+
+  /**
+   * Older repositories keep all branches in a single json map, they are moved to the packed refs once,
+   * under the exclusive lock of the repository
+   */
+  public void migrateLegacyBranches() {
+    if (!hasLegacyBranches()) {
+      return;
+    }
+
+    repo.updateString(LEGACY_BRANCHES_PATH, content -> {
+      if (content != null && !content.isEmpty()) {
+        Map<String, String> legacy = GSON.fromJson(content, new TypeToken<HashMap<String, String>>() {}.getType());
+        repo.updateString(PackedRefs.PACKED_REFS_PATH, lines -> {
+          TreeMap<String, ObjectId> refs = new PackedRefs(toBuffer(lines)).readAll();
+          legacy.forEach((name, hex) -> refs.putIfAbsent(name, ObjectId.fromHex(hex)));
+          return PackedRefs.format(refs);
+        });
+      }
+      return null;
+    });
+  }
+
+  public boolean hasLegacyBranches() {
+    return repo.loadString(LEGACY_BRANCHES_PATH) != null;
+  }
+
+  private static ByteBuffer toBuffer(String lines) {
+    return lines == null ? null : ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String getRefPath(String branchName) {
+    return HEADS_PATH + "/" + branchName;
+  }
+
+  private static ObjectId parse(String content) {
+    return ObjectId.fromHex(content.trim());
+  }
+
+  /**
+   * New branches must have valid names, neither a folder of another branch, nor inside one,
+   * like <tt>a</tt> and <tt>a/b</tt>, so that every branch can have a loose ref
+   */
+  private void checkNewName(String branchName) {
+    if (!isValidName(branchName)) {
+      throw new GitException("Invalid branch name: " + branchName);
+    }
+    for (String other : readAll().keySet()) {
+      if (other.startsWith(branchName + "/") || branchName.startsWith(other + "/")) {
+        throw new GitException("Branch " + branchName + " conflicts with the existing branch " + other);
+      }
+    }
+  }
+
+  /**
+   * @return whether the branch may have a loose ref: its name is valid, and no loose ref is in the way,
+   * as a file at a folder of the name, or a folder at the name itself
+   */
+  private boolean isLoose(String branchName) {
+    if (!isValidName(branchName)) {
+      return false;
+    }
+    for (int slash = branchName.indexOf('/'); slash >= 0; slash = branchName.indexOf('/', slash + 1)) {
+      if (repo.loadString(getRefPath(branchName.substring(0, slash))) != null) return false;
+    }
+    return repo.list(getRefPath(branchName)).isEmpty();
+  }
+
+  /**
+   * Every branch is a file of its own, in subfolders for names with <tt>/</tt>,
+   * so that every part of a name may not be empty, hidden or a lock file
+   */
+  private static boolean isValidName(String branchName) {
+    return branchName.chars().noneMatch(c -> c == '\\' || Character.isWhitespace(c) || Character.isISOControl(c))
+        && Arrays.stream(branchName.split("/", -1)).allMatch(part ->
+        !part.isEmpty() && !part.startsWith(".") && !part.endsWith(LOCK_EXTENSION));
   }
 }
@@ -0,0 +1,125 @@
+package git.branches;
+
+import git.GitException;
+import git.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Branches packed into a single file, a line <tt>&lt;hex id&gt; &lt;name&gt;</tt> per branch,
+ * sorted by bytes of names, so that a branch is found by a binary search
+ * over the file as it is, without parsing all the lines.
+ */
+class PackedRefs {
+  static final String PACKED_REFS_PATH = "packed-refs";
+  private static final byte SEPARATOR = ' ';
+  private static final byte END_OF_LINE = '\n';
+
+  private final ByteBuffer content;
+
+  /**
+   * @param content of the file, or null if there is none
+   */
+  PackedRefs(ByteBuffer content) {
+    this.content = content == null ? ByteBuffer.allocate(0) : content.slice();
+  }
+
+  /**
+   * @return where the branch points, or null if it isn't packed
+   */
+  ObjectId get(String name) {
+    byte[] key = name.getBytes(StandardCharsets.UTF_8);
+
+    // both bounds are always at line starts
+    int low = 0;
+    int high = content.limit();
+    while (low < high) {
+      int start = low + (high - low) / 2;
+      while (start > low && content.get(start - 1) != END_OF_LINE) start--;
+
+      int separator = indexOf(SEPARATOR, start);
+      int end = indexOf(END_OF_LINE, separator);
+      int order = compare(key, separator + 1, end);
+      if (order == 0) {
+        return ObjectId.fromHex(string(start, separator));
+      } else if (order < 0) {
+        high = start;
+      } else {
+        low = end + 1;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return all the packed branches by names
+   */
+  TreeMap<String, ObjectId> readAll() {
+    TreeMap<String, ObjectId> refs = new TreeMap<>();
+    for (int start = 0; start < content.limit(); ) {
+      int separator = indexOf(SEPARATOR, start);
+      int end = indexOf(END_OF_LINE, separator);
+      refs.put(string(separator + 1, end), ObjectId.fromHex(string(start, separator)));
+      start = end + 1;
+    }
+    return refs;
+  }
+
+  /**
+   * Lines of the branches, sorted the way {@link #get} expects
+   */
+  static String format(Map<String, ObjectId> refs) {
+    List<byte[]> names = new ArrayList<>();
+    refs.keySet().forEach(name -> names.add(name.getBytes(StandardCharsets.UTF_8)));
+    names.sort(PackedRefs::compare);
+
+    StringBuilder lines = new StringBuilder();
+    for (byte[] name : names) {
+      String decoded = new String(name, StandardCharsets.UTF_8);
+      lines.append(refs.get(decoded).toHex()).append((char) SEPARATOR)
+          .append(decoded).append((char) END_OF_LINE);
+    }
+    return lines.toString();
+  }
+
+  private int indexOf(byte value, int from) {
+    for (int i = from; i < content.limit(); i++) {
+      if (content.get(i) == value) return i;
+    }
+    if (value == SEPARATOR) {
+      throw new GitException("Malformed " + PACKED_REFS_PATH);
+    }
+    return content.limit();
+  }
+
+  private int compare(byte[] key, int from, int to) {
+    int length = Math.min(key.length, to - from);
+    for (int i = 0; i < length; i++) {
+      int order = Integer.compare(key[i] & 0xFF, content.get(from + i) & 0xFF);
+      if (order != 0) return order;
+    }
+    return Integer.compare(key.length, to - from);
+  }
+
+  private static int compare(byte[] left, byte[] right) {
+    int length = Math.min(left.length, right.length);
+    for (int i = 0; i < length; i++) {
+      int order = Integer.compare(left[i] & 0xFF, right[i] & 0xFF);
+      if (order != 0) return order;
+    }
+    return Integer.compare(left.length, right.length);
+  }
+
+  private String string(int from, int to) {
+    byte[] bytes = new byte[to - from];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = content.get(from + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -1,40 +1,55 @@
 package git.commits;
 
+import git.ObjectId;
 import git.trees.Tree;
+import git.trees.TreeManager;
 import org.jetbrains.annotations.NotNull;
 
-import java.time.LocalDateTime;
-import java.util.LinkedList;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Immutable commit, its identifier is known since it's built or loaded.
+ * The tree of a loaded commit is read on first access.
+ */
 public class Commit {
   public static String ROOT_COMMIT_ID = "";
 
-  private List<String> parentIds;
-  private String message;
-  private LocalDateTime date;
+  private final ObjectId identifier;
+  private final List<ObjectId> parentIds;
+  private final String message;
+  private final OffsetDateTime date;
+  private final ObjectId treeId;
+  private final TreeManager trees;
   private Tree tree;
 
-  private CommitsManager manager;
 
+  public Commit(ObjectId identifier, String message, OffsetDateTime date, Tree tree, List<ObjectId> parentIds) {
+    this(identifier, message, date, tree.getIdentifier(), null, parentIds);
+    this.tree = tree;
+  }
 
-  public Commit(CommitsManager manager, String message, LocalDateTime date, Tree tree, List<String> parentIds) {
-    this.parentIds = new LinkedList<>(parentIds);
-    this.manager = manager;
+  public Commit(ObjectId identifier, String message, OffsetDateTime date,
+                ObjectId treeId, TreeManager trees, List<ObjectId> parentIds) {
+    this.identifier = identifier;
+    this.parentIds = Collections.unmodifiableList(new ArrayList<>(parentIds));
     this.message = message;
     this.date = date;
-    this.tree = tree;
+    this.treeId = treeId;
+    this.trees = trees;
   }
 
-  public @NotNull String getIdentifier() {
-    return manager.getIdentifier(this);
+  public @NotNull ObjectId getIdentifier() {
+    return identifier;
   }
 
-  public List<String> getParentIds() {
+  public List<ObjectId> getParentIds() {
     return parentIds;
   }
 
-  public @NotNull LocalDateTime getDate() {
+  public @NotNull OffsetDateTime getDate() {
     return date;
   }
 
@@ -43,18 +58,25 @@ public class Commit {
   }
 
   public Tree getTree() {
+    if (tree == null) {
+      tree = trees.load(treeId);
+    }
     return tree;
   }
 
+  public @NotNull ObjectId getTreeId() {
+    return treeId;
+  }
+
   public boolean isRoot() {
     return parentIds.isEmpty();
   }
 
   @Override public boolean equals(Object obj) {
-    return (obj instanceof Commit) && getIdentifier().equals(((Commit) obj).getIdentifier());
+    return (obj instanceof Commit) && identifier.equals(((Commit) obj).identifier);
   }
 
   @Override public int hashCode() {
-    return this.getIdentifier().hashCode();
+    return identifier.hashCode();
   }
 }
@@ -0,0 +1,277 @@
+package git.commits;
+
+import git.GitException;
+import git.ObjectId;
+import git.repo.ObjectReader;
+import git.repo.ObjectWriter;
+import git.repo.RepositoryManager;
+
+import java.nio.ByteBuffer;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Parents, generation numbers, dates and trees of commits, kept in arrays,
+ * so that ancestry queries and gc don't load commits.<br>
+ * It is saved by gc, commits made later are loaded once and appended in memory.
+ * Files of another format are ignored, the next gc replaces them.
+ */
+class CommitGraph {
+  static final String GRAPH_PATH = "commit-graph";
+  private static final int FORMAT = 3;
+  private static final int[] NO_PARENTS = new int[0];
+
+  private static final int OURS = 1;
+  private static final int THEIRS = 2;
+  private static final int STALE = 4;
+
+  private final RepositoryManager repo;
+  private final Function<ObjectId, Commit> loader;
+
+  private final List<ObjectId> ids = new ArrayList<>();
+  private final List<ObjectId> treeIds = new ArrayList<>();
+  private final Map<ObjectId, Integer> positions = new HashMap<>();
+  private int[][] parents = new int[16][];
+  private int[] generations = new int[16];
+  private long[] seconds = new long[16];
+  private int[] nanos = new int[16];
+
+  CommitGraph(RepositoryManager repo, Function<ObjectId, Commit> loader) {
+    this.repo = repo;
+    this.loader = loader;
+
+    ByteBuffer content = repo.loadBytes(GRAPH_PATH);
+    if (content != null) {
+      read(new ObjectReader(content));
+    }
+  }
+
+  /**
+   * Format, id length, count, then per commit sorted by id: raw id, raw tree id,
+   * generation, date as epoch seconds and nanos, count and positions of parents
+   */
+  void save(Collection<ObjectId> commitIds) {
+    List<ObjectId> sorted = new ArrayList<>(commitIds);
+    Collections.sort(sorted);
+
+    Map<ObjectId, Integer> order = new HashMap<>();
+    for (int i = 0; i < sorted.size(); i++) {
+      order.put(sorted.get(i), i);
+    }
+
+    ObjectWriter out = new ObjectWriter()
+        .writeByte(FORMAT)
+        .writeByte(repo.getHasher().getIdLength())
+        .writeVarInt(sorted.size());
+
+    for (ObjectId id : sorted) {
+      int position = positionOf(id);
+      out.writeId(id)
+          .writeId(treeIds.get(position))
+          .writeVarInt(generations[position])
+          .writeVarLong(seconds[position])
+          .writeVarInt(nanos[position])
+          .writeVarInt(parents[position].length);
+      for (int parent : parents[position]) {
+        Integer parentOrder = order.get(ids.get(parent));
+        if (parentOrder == null) {
+          throw new GitException("Parent " + ids.get(parent) + " of commit " + id + " is missing");
+        }
+        out.writeVarInt(parentOrder);
+      }
+    }
+
+    repo.saveBytes(GRAPH_PATH, out.toByteArray());
+  }
+
+  private void read(ObjectReader in) {
+    if (in.readByte() != FORMAT) {
+      return;
+    }
+    int idLength = in.readByte();
+
+    int count = in.readVarInt();
+    for (int position = 0; position < count; position++) {
+      ObjectId id = in.readId(idLength);
+      ObjectId treeId = in.readId(idLength);
+      int generation = in.readVarInt();
+      long second = in.readVarLong();
+      int nano = in.readVarInt();
+
+      int[] parentPositions = new int[in.readVarInt()];
+      for (int i = 0; i < parentPositions.length; i++) {
+        parentPositions[i] = in.readVarInt();
+      }
+      append(id, treeId, parentPositions, generation, second, nano);
+    }
+  }
+
+  private int append(ObjectId id, ObjectId treeId, int[] parentPositions, int generation, long second, int nano) {
+    int position = ids.size();
+    if (position == generations.length) {
+      int capacity = 2 * position;
+      parents = Arrays.copyOf(parents, capacity);
+      generations = Arrays.copyOf(generations, capacity);
+      seconds = Arrays.copyOf(seconds, capacity);
+      nanos = Arrays.copyOf(nanos, capacity);
+    }
+
+    ids.add(id);
+    treeIds.add(treeId);
+    positions.put(id, position);
+    parents[position] = parentPositions;
+    generations[position] = generation;
+    seconds[position] = second;
+    nanos[position] = nano;
+    return position;
+  }
+
+  /**
+   * Position of the commit in the graph, commits missing from it are
+   * loaded together with their missing ancestors and appended
+   */
+  int positionOf(ObjectId id) {
+    Integer known = positions.get(id);
+    if (known != null) {
+      return known;
+    }
+
+    Deque<Commit> pending = new ArrayDeque<>();
+    pending.push(loader.apply(id));
+
+    while (!pending.isEmpty()) {
+      Commit commit = pending.peek();
+      if (positions.containsKey(commit.getIdentifier())) {
+        pending.pop();
+        continue;
+      }
+
+      boolean ready = true;
+      for (ObjectId parentId : commit.getParentIds()) {
+        if (!positions.containsKey(parentId)) {
+          pending.push(loader.apply(parentId));
+          ready = false;
+        }
+      }
+      if (!ready) {
+        continue;
+      }
+
+      pending.pop();
+      int[] parentPositions = commit.getParentIds().isEmpty() ? NO_PARENTS : new int[commit.getParentIds().size()];
+      int generation = 1;
+      for (int i = 0; i < parentPositions.length; i++) {
+        parentPositions[i] = positions.get(commit.getParentIds().get(i));
+        generation = Math.max(generation, generations[parentPositions[i]] + 1);
+      }
+
+      OffsetDateTime date = commit.getDate();
+      append(commit.getIdentifier(), commit.getTreeId(), parentPositions, generation,
+          date.toEpochSecond(), date.getNano());
+    }
+
+    return positions.get(id);
+  }
+
+  ObjectId treeIdOf(ObjectId id) {
+    return treeIds.get(positionOf(id));
+  }
+
+  /**
+   * Identifiers of the commits and all their ancestors, the newest first
+   */
+  List<ObjectId> reachableFrom(Collection<ObjectId> fromIds) {
+    List<Integer> found = new ArrayList<>();
+    BitSet visited = new BitSet();
+    Deque<Integer> stack = new ArrayDeque<>();
+    fromIds.forEach(id -> stack.push(positionOf(id)));
+
+    while (!stack.isEmpty()) {
+      int current = stack.pop();
+      if (!visited.get(current)) {
+        visited.set(current);
+        found.add(current);
+        for (int parent : parents[current]) {
+          stack.push(parent);
+        }
+      }
+    }
+
+    found.sort(newestFirst());
+    List<ObjectId> result = new ArrayList<>(found.size());
+    found.forEach(position -> result.add(ids.get(position)));
+    return result;
+  }
+
+  /**
+   * Latest common ancestor of two commits. Commits are visited by decreasing
+   * generation, so a descendant is always visited before its ancestors and
+   * the answer doesn't depend on commit dates.
+   *
+   * @return identifier of the ancestor or null if there is none
+   */
+  ObjectId mergeBase(ObjectId oursId, ObjectId theirsId) {
+    int ours = positionOf(oursId);
+    int theirs = positionOf(theirsId);
+    if (ours == theirs) {
+      return oursId;
+    }
+
+    byte[] flags = new byte[ids.size()];
+    PriorityQueue<Integer> queue = new PriorityQueue<>(
+        Comparator.<Integer>comparingInt(position -> generations[position]).reversed()
+            .thenComparing(newestFirst()));
+
+    // times each position is queued, and the number of queued ones, that are not stale
+    int[] queued = new int[ids.size()];
+    int nonStale = 2;
+
+    flags[ours] |= OURS;
+    flags[theirs] |= THEIRS;
+    queue.add(ours);
+    queue.add(theirs);
+    queued[ours]++;
+    queued[theirs]++;
+
+    Integer best = null;
+    while (nonStale > 0) {
+      int current = queue.poll();
+      queued[current]--;
+      if ((flags[current] & STALE) == 0) {
+        nonStale--;
+      }
+      int flag = flags[current] & (OURS | THEIRS | STALE);
+
+      if (flag == (OURS | THEIRS)) {
+        if (best == null) {
+          best = current;
+        }
+        flag |= STALE;
+      }
+
+      for (int parent : parents[current]) {
+        if ((flags[parent] & flag) != flag) {
+          if ((flags[parent] & STALE) == 0 && (flag & STALE) != 0) {
+            // copies of the parent queued before turn stale too
+            nonStale -= queued[parent];
+          }
+          flags[parent] |= flag;
+          queue.add(parent);
+          queued[parent]++;
+          if ((flags[parent] & STALE) == 0) {
+            nonStale++;
+          }
+        }
+      }
+    }
+
+    return best == null ? null : ids.get(best);
+  }
+
+  private Comparator<Integer> newestFirst() {
+    return Comparator.<Integer>comparingLong(position -> seconds[position])
+        .thenComparingInt(position -> nanos[position])
+        .reversed();
+  }
+}
@@ -3,96 +3,221 @@ package git.commits;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
-import git.Hasher;
+import git.GitException;
+import git.ObjectId;
+import git.repo.ObjectReader;
+import git.repo.ObjectWriter;
 import git.repo.RepositoryManager;
+import git.repo.Sweep;
 import git.trees.Tree;
 import git.trees.TreeManager;
 import org.jetbrains.annotations.NotNull;
 import util.PathConverter;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 
 public class CommitsManager {
-  private static final String COMMITS_PATH = "commits/";
-  private static final String COMMITS_FILE_PATH = COMMITS_PATH + "%s.json";
+  public static final String COMMITS_PATH = "commits/";
   private static final Gson GSON = new GsonBuilder()
       .registerTypeHierarchyAdapter(Path.class, new PathConverter())
       .create();
+  private static final int FORMAT = 2;
+
+  /**
+   * Commits of the first format keep the local time of the commit, without its zone
+   */
+  private static final int LOCAL_TIME_FORMAT = 1;
 
   private RepositoryManager repo;
   private TreeManager trees;
 
+  /**
+   * Sorted identifiers of all commits, built on first request
+   */
+  private NavigableSet<ObjectId> ids = null;
+
+  /**
+   * Ancestry of commits, loaded on first request
+   */
+  private CommitGraph graph = null;
+
   public CommitsManager(RepositoryManager repo, TreeManager trees) {
     this.repo = repo;
     this.trees = trees;
   }
 
-  public Commit build(String message, Tree tree, LocalDateTime date, List<String> parentIds) {
+  public Commit build(String message, Tree tree, OffsetDateTime date, List<ObjectId> parentIds) {
     // contract: tree is dumped already
-    return dump(new Commit(this, message, date, tree, parentIds));
+    byte[] content = encode(message, tree, date, parentIds);
+    ObjectId identifier = repo.getHasher().hash(content);
+    repo.saveObject(COMMITS_PATH, identifier, content);
+    getIds().add(identifier);
+    return new Commit(identifier, message, date, tree, parentIds);
   }
 
   public Commit newInitialCommit(Tree index) {
-    return build("Initial commit", index, LocalDateTime.now(), new LinkedList<>());
+    return build("Initial commit", index, OffsetDateTime.now(), new LinkedList<>());
   }
 
   public boolean exists(String commitIdOrPrefix) {
-    return repo.exists(String.format(COMMITS_FILE_PATH, commitIdOrPrefix))
+    return ObjectId.isHex(commitIdOrPrefix) && repo.hasObject(COMMITS_PATH, ObjectId.fromHex(commitIdOrPrefix))
         || find(commitIdOrPrefix) != null;
   }
 
-  public Commit dump(Commit commit) {
-    String json = toJSON(commit);
-    String path = String.format(COMMITS_FILE_PATH, getIdentifier(json));
-    repo.saveString(path, json);
-    return commit;
+  /**
+   * Forget the identifiers listed before, so that commits made or deleted by others are seen
+   */
+  public void reload() {
+    ids = null;
+  }
+
+  private NavigableSet<ObjectId> getIds() {
+    if (ids == null) {
+      ids = new TreeSet<>(repo.listObjects(COMMITS_PATH));
+    }
+    return ids;
+  }
+
+  private CommitGraph getGraph() {
+    if (graph == null) {
+      graph = new CommitGraph(repo, this::load);
+    }
+    return graph;
   }
 
   /**
-   * @return filename of the commit's file, like hash123.json
+   * Binary search of the prefix among the sorted identifiers.
+   * If nothing is found, identifiers are listed again, as other processes may have made the commit.
+   *
+   * @return full identifier of the commit, or null if there is none
+   * @throws GitException if several commits start with the prefix
    */
-  private String find(String commitIdOrPrefix) {
-    return repo.list(COMMITS_PATH).stream()
-        .map(path -> path.getFileName().toString())
-        .filter(name -> name.startsWith(commitIdOrPrefix))
-        .max(Comparator.comparingInt(String::length))
-        .orElse(null);
+  private ObjectId find(String commitIdOrPrefix) {
+    ObjectId found = findKnown(commitIdOrPrefix);
+    if (found == null && ids != null) {
+      ids = null;
+      found = findKnown(commitIdOrPrefix);
+    }
+    return found;
   }
 
-  public Commit load(String commitId) {
-    String path = COMMITS_PATH + find(commitId);
-    String content = repo.loadString(path);
-    Map<String, String> map = GSON.fromJson(content, new TypeToken<HashMap<String, String>>() {}.getType());
+  private ObjectId findKnown(String commitIdOrPrefix) {
+    String prefix = commitIdOrPrefix.toLowerCase();
+    if (prefix.isEmpty() || prefix.length() > 2 * ObjectId.LONG_LENGTH || !prefix.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+      return null;
+    }
 
-    String message = map.get("message");
-    Tree tree = trees.load(map.get("tree"));
-    LocalDateTime date = LocalDateTime.parse(map.get("date"));
-    String parents = map.get("parents");
-    List<String> parentIds = parents.isEmpty()
-        ? new LinkedList<>() : asList(map.get("parents").split(","));
-    return new Commit(this, message, date, tree, parentIds);
+    // the least identifier, that starts with the prefix
+    int length = prefix.length() <= 2 * ObjectId.SHORT_LENGTH ? ObjectId.SHORT_LENGTH : ObjectId.LONG_LENGTH;
+    StringBuilder lowest = new StringBuilder(prefix);
+    while (lowest.length() < 2 * length) lowest.append('0');
+
+    ObjectId found = getIds().ceiling(ObjectId.fromHex(lowest.toString()));
+    if (found == null || !found.toHex().startsWith(prefix)) {
+      return null;
+    }
+
+    ObjectId next = getIds().higher(found);
+    if (next != null && next.toHex().startsWith(prefix)) {
+      throw new GitException("Short commit id " + commitIdOrPrefix
+          + " is ambiguous, it matches at least " + found + " and " + next);
+    }
+    return found;
+  }
+
+  /**
+   * Load the commit by its full identifier or a unique prefix of it
+   *
+   * @throws GitException if there is no such commit
+   */
+  public Commit load(String commitIdOrPrefix) {
+    ObjectId identifier = find(commitIdOrPrefix);
+    if (identifier == null) {
+      throw new GitException(commitIdOrPrefix + " commit not found");
+    }
+    return load(identifier);
   }
 
-  private String toJSON(Commit commit) {
-    Map<String, Object> object = new HashMap<>();
-    object.put("parents", String.join(",", commit.getParentIds()));
-    object.put("message", commit.getMessage());
-    object.put("date", commit.getDate().toString());
-    object.put("tree", commit.getTree().getIdentifier());
-    return GSON.toJson(object);
+  /**
+   * Load the commit, commits of older repositories are stored as JSON
+   */
+  public Commit load(ObjectId identifier) {
+    ByteBuffer content = repo.readObject(COMMITS_PATH, identifier);
+    return content.get(0) == '{'
+        ? fromJSON(identifier, StandardCharsets.UTF_8.decode(content).toString())
+        : decode(identifier, new ObjectReader(content));
+  }
+
+  /**
+   * Canonical form of the commit: format, id length, raw tree id,
+   * count and raw ids of parents, date as epoch seconds and nanos, zone offset in seconds, message
+   */
+  private byte[] encode(String message, Tree tree, OffsetDateTime date, List<ObjectId> parentIds) {
+    ObjectWriter out = new ObjectWriter()
+        .writeByte(FORMAT)
+        .writeByte(repo.getHasher().getIdLength())
+        .writeId(tree.getIdentifier())
+        .writeVarInt(parentIds.size());
+    parentIds.forEach(out::writeId);
+
+    return out.writeVarLong(date.toEpochSecond())
+        .writeVarInt(date.getNano())
+        .writeVarInt(date.getOffset().getTotalSeconds())
+        .writeString(message)
+        .toByteArray();
   }
 
-  public String getIdentifier(Commit commit) {
-    return getIdentifier(toJSON(commit));
+  private Commit decode(ObjectId identifier, ObjectReader in) {
+    int format = in.readByte();
+    if (format != FORMAT && format != LOCAL_TIME_FORMAT) {
+      throw new GitException("Unknown commit format " + format);
+    }
+    int idLength = in.readByte();
+
+    ObjectId treeId = in.readId(idLength);
+    List<ObjectId> parentIds = new ArrayList<>();
+    for (int count = in.readVarInt(); count > 0; count--) {
+      parentIds.add(in.readId(idLength));
+    }
+
+    long seconds = in.readVarLong();
+    int nanos = in.readVarInt();
+    OffsetDateTime date = format == LOCAL_TIME_FORMAT
+        ? inDefaultZone(LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC))
+        : OffsetDateTime.ofInstant(Instant.ofEpochSecond(seconds, nanos), ZoneOffset.ofTotalSeconds(in.readVarInt()));
+    String message = in.readString();
+    return new Commit(identifier, message, date, treeId, trees, parentIds);
   }
 
-  private String getIdentifier(String jsonDump) {
-    return Hasher.hashHex(jsonDump);
+  private Commit fromJSON(ObjectId identifier, String content) {
+    Map<String, String> map = GSON.fromJson(content, new TypeToken<HashMap<String, String>>() {}.getType());
+
+    String message = map.get("message");
+    OffsetDateTime date = inDefaultZone(LocalDateTime.parse(map.get("date")));
+    String parents = map.get("parents");
+    List<ObjectId> parentIds = parents.isEmpty() ? new ArrayList<>()
+        : Arrays.stream(parents.split(",")).map(ObjectId::fromHex).collect(Collectors.toList());
+    return new Commit(identifier, message, date, ObjectId.fromHex(map.get("tree")), trees, parentIds);
+  }
+
+  /**
+   * Older commits were made in the zone of this machine, most likely
+   */
+  private static OffsetDateTime inDefaultZone(LocalDateTime date) {
+    return date.atZone(ZoneId.systemDefault()).toOffsetDateTime();
   }
 
   public @NotNull List<Commit> getParentsOf(Commit current) {
@@ -100,47 +225,64 @@ public class CommitsManager {
   }
 
   /**
-   * Traverse commits until root and collect to the set.
+   * Traverse commits until root and collect to the set, the newest first.
    */
   public Set<Commit> pickAllToRoot(Commit from) {
-    return pickAllToRoot(new LinkedHashSet<>(), from);
+    return pickAllToRoot(singletonList(from));
   }
 
   /**
-   * Traverse commits until root and collect to the set.
+   * Traverse commits until root and collect to the set, the newest first.
    */
   public Set<Commit> pickAllToRoot(List<Commit> from) {
+    List<ObjectId> fromIds = from.stream().map(Commit::getIdentifier).collect(Collectors.toList());
     Set<Commit> visited = new LinkedHashSet<>();
-    from.forEach(commit -> pickAllToRoot(visited, commit));
+    getGraph().reachableFrom(fromIds).forEach(id -> visited.add(load(id)));
     return visited;
   }
 
   /**
-   * Traverse commits until root and collect to the set.
+   * Lazily walk commits from the given one to the root, the newest first
+   *
+   * @param since stop at the first commit older than it, or null to walk to the root
    */
-  private Set<Commit> pickAllToRoot(Set<Commit> visited, Commit from) {
-    LinkedList<Commit> queue = new LinkedList<>();
-    queue.add(from);
+  public Stream<Commit> walk(Commit from, OffsetDateTime since) {
+    RevisionWalker walker = new RevisionWalker(this, singletonList(from), since);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(walker, Spliterator.ORDERED), false);
+  }
 
-    while (!queue.isEmpty()) {
-      Commit current = queue.pop();
+  /**
+   * Find the latest common ancestor of the commits by generation numbers
+   *
+   * @return the ancestor or null if the commits have no common history
+   */
+  public Commit mergeBase(Commit ours, Commit theirs) {
+    ObjectId id = getGraph().mergeBase(ours.getIdentifier(), theirs.getIdentifier());
+    return id == null ? null : load(id);
+  }
 
-      if (!visited.contains(current)) {
-        visited.add(current);
-        queue.addAll(getParentsOf(current));
-      }
-    }
+  /**
+   * Identifiers of the commits and all their ancestors, the newest first.
+   * Only commits made after the last gc are loaded.
+   */
+  public List<ObjectId> reachableIds(Collection<ObjectId> fromIds) {
+    return getGraph().reachableFrom(fromIds);
+  }
 
-    return visited;
+  public ObjectId getTreeIdOf(ObjectId commitId) {
+    return getGraph().treeIdOf(commitId);
   }
 
-  public void cleanAllExcept(Set<Commit> usedCommits) {
-    Set<String> used = usedCommits.stream()
-        .map(c -> c.getIdentifier() + ".json")
-        .collect(Collectors.toSet());
+  /**
+   * Save the commit graph of the commits, they must include all their ancestors
+   */
+  public void saveGraph(Collection<ObjectId> commitIds) {
+    getGraph().save(commitIds);
+  }
 
-    repo.list(COMMITS_PATH).stream()
-        .filter(path -> !used.contains(path.getFileName().toString()))
-        .forEach(repo::deleteWorkingDirFile);
+  public Sweep cleanAllExcept(Set<ObjectId> usedIds) {
+    Sweep sweep = repo.sweep(COMMITS_PATH, usedIds);
+    getIds().retainAll(usedIds);
+    return sweep;
   }
 }
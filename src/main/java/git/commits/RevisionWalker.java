@@ -0,0 +1,51 @@
+package git.commits;
+
+import git.ObjectId;
+
+import java.time.OffsetDateTime;
+import java.util.*;
+
+/**
+ * Walks commits from the given ones to the root, the newest first.<br>
+ * Commits are loaded only when the walk reaches them.
+ */
+public class RevisionWalker implements Iterator<Commit> {
+  private final CommitsManager commits;
+  private final OffsetDateTime since;
+
+  private final PriorityQueue<Commit> queue =
+      new PriorityQueue<>(Comparator.comparing(Commit::getDate).reversed());
+  private final Set<ObjectId> seen = new HashSet<>();
+
+  /**
+   * @param since stop at the first commit older than it, or null to walk to the root
+   */
+  RevisionWalker(CommitsManager commits, Collection<Commit> from, OffsetDateTime since) {
+    this.commits = commits;
+    this.since = since;
+    from.forEach(this::enqueue);
+  }
+
+  private void enqueue(Commit commit) {
+    if (seen.add(commit.getIdentifier())) {
+      queue.add(commit);
+    }
+  }
+
+  @Override public boolean hasNext() {
+    return !queue.isEmpty() && (since == null || !queue.peek().getDate().isBefore(since));
+  }
+
+  @Override public Commit next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    Commit current = queue.poll();
+    current.getParentIds().stream()
+        .filter(id -> !seen.contains(id))
+        .map(commits::load)
+        .forEach(this::enqueue);
+    return current;
+  }
+}
@@ -0,0 +1,83 @@
+package git.daemon;
+
+import git.GitException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+
+/**
+ * Thin client of {@link DaemonServer}: it sends the command line to the running daemon
+ * and copies the output of the command to its own stdout and stderr as it comes.
+ */
+public class DaemonClient {
+  private static final int CONNECT_TIMEOUT_MS = 200;
+
+  private DaemonClient() {
+  }
+
+  /**
+   * Run the command in the daemon
+   *
+   * @param root working directory of the repository
+   * @return exit code of the command, or null if no daemon is running, so the command is not run
+   * @throws GitException if the daemon is gone in the middle of the command
+   */
+  public static Integer forward(Path root, String[] args) {
+    Protocol.Registration daemon = Protocol.readRegistry();
+    if (daemon == null) {
+      return null;
+    }
+
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), daemon.port), CONNECT_TIMEOUT_MS);
+    } catch (IOException e) {
+      close(socket);
+      return null;
+    }
+
+    try (DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+         DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+      request.writeUTF(daemon.token);
+      request.writeUTF(root.toAbsolutePath().normalize().toString());
+      request.writeInt(args.length);
+      for (String arg : args) {
+        request.writeUTF(arg);
+      }
+      request.flush();
+
+      while (true) {
+        byte kind = response.readByte();
+        if (kind == Protocol.EXIT) {
+          return response.readInt();
+        }
+
+        byte[] bytes = new byte[response.readInt()];
+        response.readFully(bytes);
+        PrintStream target = kind == Protocol.ERR ? System.err : System.out;
+        target.write(bytes, 0, bytes.length);
+        target.flush();
+      }
+    } catch (IOException e) {
+      throw new GitException("Lost connection to gi daemon: " + e.getMessage(), e);
+    } finally {
+      close(socket);
+    }
+  }
+
+  private static void close(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+      // nothing to release
+    }
+  }
+}
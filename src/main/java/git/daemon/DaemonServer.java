@@ -0,0 +1,115 @@
+package git.daemon;
+
+import git.Git;
+import git.Main;
+import git.repo.CachingRepositoryManager;
+import git.repo.PackedRepositoryManager;
+import org.apache.commons.codec.binary.Hex;
+import util.ThreadOutput;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running process, that runs commands of thin clients, see {@link DaemonClient}.
+ * It keeps an instance of {@link Git} per working directory, so that managers and
+ * object caches stay warm between commands. Commands of the same repository run one by one,
+ * each reads HEAD and the index anew, so that changes made by other processes are seen.<br>
+ * It listens on a loopback port, clients prove to be of the same user by the token from the registry.
+ */
+public class DaemonServer {
+  private static final int BACKLOG = 64;
+  private static final int TOKEN_BYTES = 16;
+
+  private final Map<Path, Git> repositories = new ConcurrentHashMap<>();
+  private final ExecutorService clients = Executors.newCachedThreadPool(command -> {
+    Thread thread = new Thread(command, "gi-daemon-client");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final ThreadOutput out = new ThreadOutput(System.out);
+  private final ThreadOutput err = new ThreadOutput(System.err);
+  private final String token = newToken();
+
+  /**
+   * Serve clients until the process is stopped
+   *
+   * @param port loopback port to listen on, zero for any free one
+   */
+  public void serve(int port) throws IOException {
+    PrintStream console = System.err;
+    try (ServerSocket server = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress())) {
+      Protocol.Registration registration = new Protocol.Registration(server.getLocalPort(), token);
+      Protocol.register(registration);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> Protocol.unregister(registration)));
+
+      System.setOut(new PrintStream(out, true));
+      System.setErr(new PrintStream(err, true));
+      console.println("gi daemon is listening on port " + server.getLocalPort());
+
+      while (!server.isClosed()) {
+        Socket client = server.accept();
+        clients.execute(() -> handle(client));
+      }
+    }
+  }
+
+  private void handle(Socket client) {
+    try (Socket socket = client;
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         DataOutputStream response = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+      if (!token.equals(in.readUTF())) {
+        return;
+      }
+
+      Path root = Paths.get(in.readUTF()).toAbsolutePath().normalize();
+      String[] args = new String[in.readInt()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = in.readUTF();
+      }
+
+      Protocol.writeExit(response, run(root, args, response));
+    } catch (IOException ignored) {
+      // the client has gone, there is no one to report to
+    }
+  }
+
+  private int run(Path root, String[] args, DataOutputStream response) {
+    Git git = repositories.computeIfAbsent(root, dir ->
+        new Git(new CachingRepositoryManager(new PackedRepositoryManager(dir)), dir.toFile()));
+
+    synchronized (git) {
+      out.set(new Protocol.FrameOutput(response, Protocol.OUT));
+      err.set(new Protocol.FrameOutput(response, Protocol.ERR));
+      try {
+        return Main.execute(git, args);
+      } finally {
+        System.out.flush();
+        System.err.flush();
+        out.set(null);
+        err.set(null);
+      }
+    }
+  }
+
+  private static String newToken() {
+    byte[] random = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(random);
+    return Hex.encodeHexString(random);
+  }
+}
@@ -0,0 +1,175 @@
+package git.daemon;
+
+import git.GitException;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileOwnerAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Wire format between the daemon and its clients over a loopback socket.<br>
+ * A request is the token of the daemon, the working directory and the arguments, each as a UTF string,
+ * arguments are preceded by their count. A response is a sequence of frames, each starts with its kind:
+ * output frames hold the length and bytes written to stdout or stderr, the last frame holds the exit code.<br>
+ * A running daemon is registered with its port and token in <tt>~/.gi/daemon</tt>, a file only the user may read,
+ * in a folder only the user may write to. A registry owned by someone else, or readable by others, is ignored.
+ */
+final class Protocol {
+  static final byte EXIT = 0;
+  static final byte OUT = 1;
+  static final byte ERR = 2;
+
+  private static final String REGISTRY_FOLDER = ".gi";
+  private static final String REGISTRY_NAME = "daemon";
+  private static final String OWNER_ONLY = "rw-------";
+  private static final String OWNER_ONLY_FOLDER = "rwx------";
+
+  private Protocol() {
+  }
+
+  /**
+   * Port and token of the running daemon
+   */
+  static final class Registration {
+    final int port;
+    final String token;
+
+    Registration(int port, String token) {
+      this.port = port;
+      this.token = token;
+    }
+  }
+
+  private static Path getRegistryPath() {
+    return Paths.get(System.getProperty("user.home"), REGISTRY_FOLDER, REGISTRY_NAME);
+  }
+
+  /**
+   * @return the running daemon, or null if there is none, or the registry can't be trusted
+   */
+  static Registration readRegistry() {
+    try {
+      Path path = getRegistryPath();
+      if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS) || !isOwnedByUser(path)
+          || hasPosixPermissions(path) && !getPermissions(path).equals(PosixFilePermissions.fromString(OWNER_ONLY))) {
+        return null;
+      }
+      String[] fields = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim().split(" ");
+      return fields.length == 2 ? new Registration(Integer.parseInt(fields[0]), fields[1]) : null;
+    } catch (NoSuchFileException | NumberFormatException e) {
+      return null;
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  static void register(Registration registration) {
+    try {
+      Path path = getRegistryPath();
+      Path folder = path.getParent();
+      if (!Files.isDirectory(folder)) {
+        Files.createDirectories(folder);
+        if (hasPosixPermissions(folder)) {
+          Files.setPosixFilePermissions(folder, PosixFilePermissions.fromString(OWNER_ONLY_FOLDER));
+        }
+      }
+      if (!isOwnedByUser(folder) || hasPosixPermissions(folder) && !Collections.disjoint(getPermissions(folder),
+          EnumSet.of(PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE))) {
+        throw new GitException("Can't register the daemon, others may write to " + folder);
+      }
+
+      Path temporary = Files.createTempFile(folder, REGISTRY_NAME, null);
+      try {
+        if (hasPosixPermissions(temporary)) {
+          Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString(OWNER_ONLY));
+        }
+        Files.write(temporary, (registration.port + " " + registration.token).getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  private static boolean isOwnedByUser(Path path) throws IOException {
+    if (!Files.getFileStore(path).supportsFileAttributeView(FileOwnerAttributeView.class)) {
+      return true;
+    }
+    UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+        .lookupPrincipalByName(System.getProperty("user.name"));
+    return Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(user);
+  }
+
+  private static boolean hasPosixPermissions(Path path) throws IOException {
+    return Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class);
+  }
+
+  private static Set<PosixFilePermission> getPermissions(Path path) throws IOException {
+    return Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+  }
+
+  /**
+   * Remove the registration, unless another daemon has replaced it
+   */
+  static void unregister(Registration registration) {
+    Registration current = readRegistry();
+    if (current != null && current.token.equals(registration.token)) {
+      try {
+        Files.deleteIfExists(getRegistryPath());
+      } catch (IOException ignored) {
+        // the daemon is stopping anyway
+      }
+    }
+  }
+
+  /**
+   * Writes everything as frames of the kind, each write is sent at once
+   */
+  static final class FrameOutput extends OutputStream {
+    private final DataOutputStream socket;
+    private final byte kind;
+
+    FrameOutput(DataOutputStream socket, byte kind) {
+      this.socket = socket;
+      this.kind = kind;
+    }
+
+    @Override public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      synchronized (socket) {
+        socket.writeByte(kind);
+        socket.writeInt(len);
+        socket.write(b, off, len);
+        socket.flush();
+      }
+    }
+  }
+
+  static void writeExit(DataOutputStream socket, int code) throws IOException {
+    synchronized (socket) {
+      socket.writeByte(EXIT);
+      socket.writeInt(code);
+      socket.flush();
+    }
+  }
+}
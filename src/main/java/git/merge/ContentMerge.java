@@ -0,0 +1,286 @@
+package git.merge;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Three-way merge of a file by lines, like diff3 does. Changes of both sides against the base
+ * are taken, unless they overlap or touch each other, then they are put between conflict markers,
+ * if they differ.<br>
+ * Only ids of lines are held in memory, the merged file is streamed from the three versions by {@link #open}.
+ */
+public final class ContentMerge {
+  private static final String OURS_MARKER = "<<<<<<< ";
+  private static final String SEPARATOR_MARKER = "=======\n";
+  private static final String THEIRS_MARKER = ">>>>>>> ";
+
+  private static final int BASE = 0;
+  private static final int OURS = 1;
+  private static final int THEIRS = 2;
+  private static final int MARKER = 3;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final List<Chunk> chunks = new ArrayList<>();
+  private final List<Supplier<InputStream>> sources;
+  private final String ourLabel;
+  private final String theirLabel;
+  private int conflicts = 0;
+
+  /**
+   * Lines <tt>[from, to)</tt> of a source, or a marker line
+   */
+  private static final class Chunk {
+    final int source;
+    final int from;
+    final int to;
+    final String marker;
+
+    Chunk(int source, int from, int to, String marker) {
+      this.source = source;
+      this.from = from;
+      this.to = to;
+      this.marker = marker;
+    }
+  }
+
+  private ContentMerge(List<Supplier<InputStream>> sources, String ourLabel, String theirLabel) {
+    this.sources = sources;
+    this.ourLabel = ourLabel;
+    this.theirLabel = theirLabel;
+  }
+
+  /**
+   * Every supplier opens its version anew, from the start: once to read lines, once to write the result
+   *
+   * @param base of the versions, null if both sides added the file
+   * @return the merge, or null if any of the versions is binary
+   */
+  public static ContentMerge merge(Supplier<InputStream> base, Supplier<InputStream> ours, Supplier<InputStream> theirs,
+                                   String ourLabel, String theirLabel) throws IOException {
+    LineSequence.Interner interner = new LineSequence.Interner();
+    LineSequence baseLines = base == null ? LineSequence.EMPTY : LineSequence.read(base.get(), interner);
+    LineSequence ourLines = LineSequence.read(ours.get(), interner);
+    LineSequence theirLines = LineSequence.read(theirs.get(), interner);
+    if (baseLines.isBinary() || ourLines.isBinary() || theirLines.isBinary()) {
+      return null;
+    }
+
+    List<Supplier<InputStream>> sources = new ArrayList<>();
+    sources.add(base == null ? () -> new ByteArrayInputStream(new byte[0]) : base);
+    sources.add(ours);
+    sources.add(theirs);
+
+    ContentMerge merge = new ContentMerge(sources, ourLabel, theirLabel);
+    merge.run(baseLines, ourLines, theirLines,
+        HistogramDiff.diff(baseLines, ourLines, interner), HistogramDiff.diff(baseLines, theirLines, interner));
+    return merge;
+  }
+
+  private void run(LineSequence base, LineSequence ours, LineSequence theirs, List<Edit> ourEdits, List<Edit> theirEdits) {
+    int position = 0;
+    int ourShift = 0;
+    int theirShift = 0;
+    int i = 0;
+    int j = 0;
+
+    while (i < ourEdits.size() || j < theirEdits.size()) {
+      boolean ourFirst = j == theirEdits.size() || i < ourEdits.size() && ourEdits.get(i).beginA <= theirEdits.get(j).beginA;
+      Edit first = ourFirst ? ourEdits.get(i) : theirEdits.get(j);
+      int begin = first.beginA;
+      int end = first.endA;
+
+      // base lines before the chunk are the same on both sides, so are the shifts of line numbers
+      int ourBegin = begin + ourShift;
+      int theirBegin = begin + theirShift;
+      boolean ourChanged = false;
+      boolean theirChanged = false;
+
+      // edits, that overlap or touch the chunk in the base, join it
+      boolean grown = true;
+      while (grown) {
+        grown = false;
+        if (i < ourEdits.size() && ourEdits.get(i).beginA <= end) {
+          Edit edit = ourEdits.get(i++);
+          end = Math.max(end, edit.endA);
+          ourShift += (edit.endB - edit.beginB) - (edit.endA - edit.beginA);
+          ourChanged = grown = true;
+        }
+        if (j < theirEdits.size() && theirEdits.get(j).beginA <= end) {
+          Edit edit = theirEdits.get(j++);
+          end = Math.max(end, edit.endA);
+          theirShift += (edit.endB - edit.beginB) - (edit.endA - edit.beginA);
+          theirChanged = grown = true;
+        }
+      }
+      int ourEnd = end + ourShift;
+      int theirEnd = end + theirShift;
+
+      add(BASE, position, begin);
+      if (!theirChanged) {
+        add(OURS, ourBegin, ourEnd);
+      } else if (!ourChanged || ours.rangeEquals(ourBegin, ourEnd, theirs, theirBegin, theirEnd)) {
+        add(THEIRS, theirBegin, theirEnd);
+      } else {
+        conflicts++;
+        chunks.add(new Chunk(MARKER, 0, 0, OURS_MARKER + ourLabel + "\n"));
+        add(OURS, ourBegin, ourEnd);
+        chunks.add(new Chunk(MARKER, 0, 0, SEPARATOR_MARKER));
+        add(THEIRS, theirBegin, theirEnd);
+        chunks.add(new Chunk(MARKER, 0, 0, THEIRS_MARKER + theirLabel + "\n"));
+      }
+      position = end;
+    }
+    add(BASE, position, base.size());
+  }
+
+  private void add(int source, int from, int to) {
+    if (from < to) {
+      chunks.add(new Chunk(source, from, to, null));
+    }
+  }
+
+  /**
+   * @return the number of regions put between conflict markers
+   */
+  public int getConflicts() {
+    return conflicts;
+  }
+
+  public boolean isClean() {
+    return conflicts == 0;
+  }
+
+  /**
+   * @return the merged file, read from the versions as it's consumed
+   */
+  public InputStream open() {
+    return new MergedStream();
+  }
+
+  /**
+   * Lines of every version are taken in increasing order, so each one is read once, by a stream of its own
+   */
+  private final class MergedStream extends InputStream {
+    private final Source[] readers = new Source[3];
+
+    private int chunk = -1;
+    private byte[] marker = null;
+    private int markerPosition = 0;
+
+    /**
+     * Markers start a line of their own, even if the previous one has no line feed
+     */
+    private byte last = '\n';
+
+    @Override public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override public int read(byte[] into, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+
+      while (chunk < chunks.size()) {
+        int copied = 0;
+        if (marker != null) {
+          copied = Math.min(length, marker.length - markerPosition);
+          System.arraycopy(marker, markerPosition, into, offset, copied);
+          markerPosition += copied;
+        } else if (chunk >= 0) {
+          Chunk current = chunks.get(chunk);
+          copied = source(current.source).copy(current.to, into, offset, length);
+        }
+
+        if (copied > 0) {
+          last = into[offset + copied - 1];
+          return copied;
+        }
+        if (++chunk < chunks.size()) {
+          start(chunks.get(chunk));
+        }
+      }
+      return -1;
+    }
+
+    private void start(Chunk next) throws IOException {
+      if (next.source == MARKER) {
+        String text = last == '\n' ? next.marker : "\n" + next.marker;
+        marker = text.getBytes(StandardCharsets.UTF_8);
+        markerPosition = 0;
+      } else {
+        marker = null;
+        source(next.source).skipTo(next.from);
+      }
+    }
+
+    private Source source(int source) {
+      if (readers[source] == null) {
+        readers[source] = new Source(sources.get(source).get());
+      }
+      return readers[source];
+    }
+
+    @Override public void close() throws IOException {
+      for (Source reader : readers) {
+        if (reader != null) reader.input.close();
+      }
+    }
+  }
+
+  /**
+   * A version, read line by line
+   */
+  private static final class Source {
+    private final InputStream input;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private int line = 0;
+
+    Source(InputStream input) {
+      this.input = input;
+    }
+
+    void skipTo(int to) throws IOException {
+      while (line < to) {
+        if (position == limit && !fill()) {
+          line = to;
+        } else if (buffer[position++] == '\n') {
+          line++;
+        }
+      }
+    }
+
+    /**
+     * @return the number of bytes copied, before line <tt>to</tt> starts, 0 once it does
+     */
+    int copy(int to, byte[] into, int offset, int length) throws IOException {
+      int copied = 0;
+      while (copied < length && line < to) {
+        if (position == limit && !fill()) {
+          // a last line without a line feed
+          line = to;
+          break;
+        }
+        byte b = buffer[position++];
+        into[offset + copied++] = b;
+        if (b == '\n') line++;
+      }
+      return copied;
+    }
+
+    private boolean fill() throws IOException {
+      limit = Math.max(input.read(buffer), 0);
+      position = 0;
+      return limit > 0;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package git.merge;
+
+/**
+ * Lines <tt>[beginA, endA)</tt> of the old sequence, replaced by lines <tt>[beginB, endB)</tt> of the new one.
+ * Either range may be empty, for an insertion or a deletion.
+ */
+public final class Edit {
+  final int beginA;
+  final int endA;
+  final int beginB;
+  final int endB;
+
+  Edit(int beginA, int endA, int beginB, int endB) {
+    this.beginA = beginA;
+    this.endA = endA;
+    this.beginB = beginB;
+    this.endB = endB;
+  }
+
+  public int getBeginA() {
+    return beginA;
+  }
+
+  public int getEndA() {
+    return endA;
+  }
+
+  public int getBeginB() {
+    return beginB;
+  }
+
+  public int getEndB() {
+    return endB;
+  }
+
+  @Override public String toString() {
+    return "Edit[" + beginA + "-" + endA + " -> " + beginB + "-" + endB + "]";
+  }
+}
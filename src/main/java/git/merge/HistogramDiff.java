@@ -0,0 +1,244 @@
+package git.merge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Diff of two line sequences. A region is split around the longest run of lines,
+ * that contains the line occurring the fewest times in the old sequence, like git's histogram diff does.
+ * Regions without such a line, where every line repeats more than {@value #MAX_OCCURRENCES} times,
+ * are split by the middle snake of Myers' diff, that needs linear memory.<br>
+ * Regions are kept on a stack instead of the call stack, so that long files don't overflow it.
+ */
+public final class HistogramDiff {
+  /**
+   * Lines repeating more often are not anchors, they are left to Myers' diff
+   */
+  private static final int MAX_OCCURRENCES = 64;
+
+  private final int[] a;
+  private final int[] b;
+
+  /**
+   * Occurrences of a line in the old region and the last of them, indexed by line ids
+   */
+  private final int[] counts;
+  private final int[] lastOccurrence;
+
+  /**
+   * The previous occurrence of the same line in the old region, indexed by line numbers
+   */
+  private final int[] previousOccurrence;
+
+  private final List<Edit> edits = new ArrayList<>();
+  private final Deque<int[]> regions = new ArrayDeque<>();
+
+  private HistogramDiff(int[] a, int[] b, int lineKinds) {
+    this.a = a;
+    this.b = b;
+    this.counts = new int[lineKinds];
+    this.lastOccurrence = new int[lineKinds];
+    this.previousOccurrence = new int[a.length];
+    Arrays.fill(lastOccurrence, -1);
+  }
+
+  /**
+   * @param interner the sequences were read with
+   * @return edits turning the old sequence into the new one, sorted and not touching each other
+   */
+  public static List<Edit> diff(LineSequence from, LineSequence to, LineSequence.Interner interner) {
+    HistogramDiff diff = new HistogramDiff(from.getIds(), to.getIds(), interner.size());
+    diff.regions.push(new int[]{0, from.size(), 0, to.size()});
+    while (!diff.regions.isEmpty()) {
+      int[] region = diff.regions.pop();
+      diff.split(region[0], region[1], region[2], region[3]);
+    }
+    return diff.sortedEdits();
+  }
+
+  private void split(int aBegin, int aEnd, int bBegin, int bEnd) {
+    while (aBegin < aEnd && bBegin < bEnd && a[aBegin] == b[bBegin]) {
+      aBegin++;
+      bBegin++;
+    }
+    while (aBegin < aEnd && bBegin < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+      aEnd--;
+      bEnd--;
+    }
+
+    if (aBegin == aEnd || bBegin == bEnd) {
+      if (aBegin != aEnd || bBegin != bEnd) {
+        edits.add(new Edit(aBegin, aEnd, bBegin, bEnd));
+      }
+      return;
+    }
+
+    int[] anchor = findAnchor(aBegin, aEnd, bBegin, bEnd);
+    if (anchor != null) {
+      push(aBegin, anchor[0], bBegin, anchor[2]);
+      push(anchor[1], aEnd, anchor[3], bEnd);
+      return;
+    }
+
+    // the snake goes from its start to its end by a single edit and equal lines, splitting the region in three
+    int[] snake = middleSnake(aBegin, aEnd, bBegin, bEnd);
+    push(aBegin, snake[0], bBegin, snake[1]);
+    push(snake[0], snake[2], snake[1], snake[3]);
+    push(snake[2], aEnd, snake[3], bEnd);
+  }
+
+  private void push(int aBegin, int aEnd, int bBegin, int bEnd) {
+    if (aBegin < aEnd || bBegin < bEnd) {
+      regions.push(new int[]{aBegin, aEnd, bBegin, bEnd});
+    }
+  }
+
+  /**
+   * @return the run of equal lines <tt>{aBegin, aEnd, bBegin, bEnd}</tt> around the rarest common line,
+   * the longest one among equally rare, or null if no line is rare enough
+   */
+  private int[] findAnchor(int aBegin, int aEnd, int bBegin, int bEnd) {
+    for (int i = aBegin; i < aEnd; i++) {
+      int line = a[i];
+      counts[line]++;
+      previousOccurrence[i] = lastOccurrence[line];
+      lastOccurrence[line] = i;
+    }
+
+    int[] best = null;
+    int bestCount = 0;
+    for (int j = bBegin; j < bEnd; j++) {
+      int count = counts[b[j]];
+      if (count == 0 || count > MAX_OCCURRENCES || best != null && (count > bestCount || count == bestCount && j < best[3])) {
+        continue;
+      }
+
+      for (int i = lastOccurrence[b[j]]; i >= aBegin; i = previousOccurrence[i]) {
+        int runABegin = i;
+        int runBBegin = j;
+        while (runABegin > aBegin && runBBegin > bBegin && a[runABegin - 1] == b[runBBegin - 1]) {
+          runABegin--;
+          runBBegin--;
+        }
+        int runAEnd = i + 1;
+        int runBEnd = j + 1;
+        while (runAEnd < aEnd && runBEnd < bEnd && a[runAEnd] == b[runBEnd]) {
+          runAEnd++;
+          runBEnd++;
+        }
+
+        if (best == null || count < bestCount || isBetterRun(runABegin, runAEnd, best, aBegin + aEnd)) {
+          best = new int[]{runABegin, runAEnd, runBBegin, runBEnd};
+          bestCount = count;
+        }
+      }
+    }
+
+    for (int i = aBegin; i < aEnd; i++) {
+      counts[a[i]] = 0;
+      lastOccurrence[a[i]] = -1;
+    }
+    return best;
+  }
+
+  /**
+   * Longer runs are better, then the ones closer to the middle of the region: splitting regions in halves
+   * keeps files with many edits of unique lines from being split one run at a time
+   *
+   * @param middle twice the middle of the region
+   */
+  private static boolean isBetterRun(int begin, int end, int[] best, int middle) {
+    if (end - begin != best[1] - best[0]) {
+      return end - begin > best[1] - best[0];
+    }
+    return Math.abs(begin + end - middle) < Math.abs(best[0] + best[1] - middle);
+  }
+
+  /**
+   * Myers' search of the middle snake, from both corners of the region at once
+   *
+   * @return <tt>{aStart, bStart, aEnd, bEnd}</tt> of the snake
+   */
+  private int[] middleSnake(int aBegin, int aEnd, int bBegin, int bEnd) {
+    int width = aEnd - aBegin;
+    int height = bEnd - bBegin;
+    int delta = width - height;
+    boolean odd = (delta & 1) != 0;
+    int max = (width + height + 1) / 2;
+
+    // furthest x reached forwards by diagonal k = x - y, and furthest y reached backwards by diagonal c = k - delta
+    int offset = max + 1;
+    int[] forward = new int[2 * max + 3];
+    int[] backward = new int[2 * max + 3];
+    forward[offset + 1] = aBegin;
+    backward[offset + 1] = bEnd;
+
+    for (int d = 0; d <= max; d++) {
+      for (int k = d; k >= -d; k -= 2) {
+        int c = k - delta;
+        int x;
+        int px;
+        if (k == -d || k != d && forward[offset + k - 1] < forward[offset + k + 1]) {
+          px = x = forward[offset + k + 1];
+        } else {
+          px = forward[offset + k - 1];
+          x = px + 1;
+        }
+        int y = bBegin + (x - aBegin) - k;
+        int py = d == 0 || x != px ? y : y - 1;
+        while (x < aEnd && y < bEnd && a[x] == b[y]) {
+          x++;
+          y++;
+        }
+        forward[offset + k] = x;
+        if (odd && c >= -(d - 1) && c <= d - 1 && y >= backward[offset + c]) {
+          return new int[]{px, py, x, y};
+        }
+      }
+
+      for (int c = d; c >= -d; c -= 2) {
+        int k = c + delta;
+        int y;
+        int py;
+        if (c == -d || c != d && backward[offset + c - 1] > backward[offset + c + 1]) {
+          py = y = backward[offset + c + 1];
+        } else {
+          py = backward[offset + c - 1];
+          y = py - 1;
+        }
+        int x = aBegin + (y - bBegin) + k;
+        int px = d == 0 || y != py ? x : x + 1;
+        while (x > aBegin && y > bBegin && a[x - 1] == b[y - 1]) {
+          x--;
+          y--;
+        }
+        backward[offset + c] = y;
+        if (!odd && k >= -d && k <= d && x <= forward[offset + k]) {
+          return new int[]{x, y, px, py};
+        }
+      }
+    }
+    throw new IllegalStateException("No middle snake in " + width + "x" + height);
+  }
+
+  /**
+   * Regions are split in any order, adjacent edits are joined once they are sorted
+   */
+  private List<Edit> sortedEdits() {
+    edits.sort(Comparator.comparingInt((Edit edit) -> edit.beginA).thenComparingInt(edit -> edit.beginB));
+    List<Edit> joined = new ArrayList<>();
+    for (Edit edit : edits) {
+      Edit last = joined.isEmpty() ? null : joined.get(joined.size() - 1);
+      if (last != null && last.endA == edit.beginA && last.endB == edit.beginB) {
+        joined.set(joined.size() - 1, new Edit(last.beginA, edit.endA, last.beginB, edit.endB));
+      } else {
+        joined.add(edit);
+      }
+    }
+    return joined;
+  }
+}
@@ -0,0 +1,208 @@
+package git.merge;
+
+import git.GitException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Lines of a file as interned ids: equal lines get equal ids, so that diff compares ints.
+ * The sequence keeps only ids, the content is read again when the merged file is written.<br>
+ * Lines are looked up by a hash and compared byte by byte, so that different lines never share an id.
+ */
+public final class LineSequence {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Files with a zero byte among the first bytes are taken for binary, like git does
+   */
+  private static final int BINARY_CHECK_BYTES = 8000;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final int[] ids;
+  private final boolean binary;
+
+  private LineSequence(int[] ids, boolean binary) {
+    this.ids = ids;
+    this.binary = binary;
+  }
+
+  /**
+   * Shared by the sequences, that are compared with each other.
+   * Every distinct line is kept once, one after another in a single array,
+   * and found by an open addressing table of ids.
+   */
+  public static final class Interner {
+    private static final int NONE = -1;
+
+    private byte[] content = new byte[BUFFER_SIZE];
+    private int contentSize = 0;
+
+    /**
+     * Start, length and hash of every line, by id
+     */
+    private int[] starts = new int[64];
+    private int[] lengths = new int[64];
+    private long[] hashes = new long[64];
+    private int size = 0;
+
+    private int[] table = newTable(128);
+
+    /**
+     * @return id of the line <tt>line[0, length)</tt>, the same for lines with equal bytes
+     */
+    int intern(byte[] line, int length, long hash) {
+      int mask = table.length - 1;
+      for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+        int id = table[slot];
+        if (id == NONE) {
+          table[slot] = add(line, length, hash);
+          if (2 * size > table.length) {
+            rehash();
+          }
+          return size - 1;
+        }
+        if (hashes[id] == hash && lengths[id] == length && equals(id, line, length)) {
+          return id;
+        }
+      }
+    }
+
+    private boolean equals(int id, byte[] line, int length) {
+      int start = starts[id];
+      for (int i = 0; i < length; i++) {
+        if (content[start + i] != line[i]) return false;
+      }
+      return true;
+    }
+
+    private int add(byte[] line, int length, long hash) {
+      if (contentSize + length < 0) {
+        throw new GitException("Files are too large to be merged by lines");
+      }
+      if (contentSize + length > content.length) {
+        content = Arrays.copyOf(content, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * content.length, contentSize + length)));
+      }
+      System.arraycopy(line, 0, content, contentSize, length);
+
+      if (size == starts.length) {
+        starts = Arrays.copyOf(starts, 2 * size);
+        lengths = Arrays.copyOf(lengths, 2 * size);
+        hashes = Arrays.copyOf(hashes, 2 * size);
+      }
+      starts[size] = contentSize;
+      lengths[size] = length;
+      hashes[size] = hash;
+      contentSize += length;
+      return size++;
+    }
+
+    private void rehash() {
+      table = newTable(2 * table.length);
+      int mask = table.length - 1;
+      for (int id = 0; id < size; id++) {
+        int slot = (int) hashes[id] & mask;
+        while (table[slot] != NONE) slot = (slot + 1) & mask;
+        table[slot] = id;
+      }
+    }
+
+    private static int[] newTable(int capacity) {
+      int[] table = new int[capacity];
+      Arrays.fill(table, NONE);
+      return table;
+    }
+
+    int size() {
+      return size;
+    }
+  }
+
+  public static final LineSequence EMPTY = new LineSequence(new int[0], false);
+
+  /**
+   * Read the stream to its end, line by line. A line includes its line feed,
+   * so that a last line without one differs from the same line with it.
+   */
+  public static LineSequence read(InputStream content, Interner interner) throws IOException {
+    int[] ids = new int[64];
+    int count = 0;
+    boolean binary = false;
+
+    long position = 0;
+    long hash = FNV_OFFSET;
+    byte[] line = new byte[256];
+    int length = 0;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream in = content) {
+      for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+        for (int i = 0; i < read; i++, position++) {
+          byte b = buffer[i];
+          if (b == 0 && position < BINARY_CHECK_BYTES) {
+            binary = true;
+          }
+
+          if (length == line.length) line = Arrays.copyOf(line, 2 * length);
+          line[length++] = b;
+          hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+          if (b == '\n') {
+            if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = interner.intern(line, length, mix(hash));
+            hash = FNV_OFFSET;
+            length = 0;
+          }
+        }
+      }
+    }
+
+    if (length > 0) {
+      if (count == ids.length) ids = Arrays.copyOf(ids, count + 1);
+      ids[count++] = interner.intern(line, length, mix(hash));
+    }
+    return new LineSequence(Arrays.copyOf(ids, count), binary);
+  }
+
+  /**
+   * Final avalanche of MurmurHash3, so that similar lines spread over all the bits
+   */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  int get(int line) {
+    return ids[line];
+  }
+
+  int[] getIds() {
+    return ids;
+  }
+
+  public boolean isBinary() {
+    return binary;
+  }
+
+  /**
+   * @return whether lines <tt>[from, to)</tt> equal lines <tt>[otherFrom, otherTo)</tt> of the other sequence
+   */
+  boolean rangeEquals(int from, int to, LineSequence other, int otherFrom, int otherTo) {
+    if (to - from != otherTo - otherFrom) {
+      return false;
+    }
+    for (int i = 0; i < to - from; i++) {
+      if (ids[from + i] != other.ids[otherFrom + i]) return false;
+    }
+    return true;
+  }
+}
@@ -2,66 +2,75 @@ package git.repo;
 
 import git.GitException;
 import git.Hasher;
+import git.ObjectId;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Dumped object file, saved in .git/objects
  */
 public class Blob {
-  private static final String BLOBS_PATH = "blobs/";
-  private static final String BLOBS_FILE_PATH = BLOBS_PATH + "%s";
+  public static final String BLOBS_PATH = "blobs/";
 
   private RepositoryManager repo;
-  private String source = null;
-  private String identifier;
+  private ObjectId identifier;
 
-  private Blob(RepositoryManager repo, String identifier) {
+  private Blob(RepositoryManager repo, ObjectId identifier) {
     this.identifier = identifier;
     this.repo = repo;
   }
 
+  /**
+   * Hash the file and store it in the repository in a single pass,
+   * without loading the whole content into memory.
+   */
   public static @NotNull Blob buildFrom(Path sourceFilePath, RepositoryManager repo) {
-    try {
-      String source = repo.read(sourceFilePath);
-      String id = Hasher.hashHex(source);
-      String path = String.format(BLOBS_FILE_PATH, id);
-      repo.writeContentTo(path, sourceFilePath);
-      return new Blob(repo, id);
+    try (Hasher.HashingInputStream source = new Hasher.HashingInputStream(
+        repo.openWorkingDirFile(sourceFilePath), repo.getHasher().newDigest())) {
+      ObjectId[] id = new ObjectId[1];
+      repo.writeObject(BLOBS_PATH, source,
+          () -> id[0] = source.getDigest().finish());
+      return new Blob(repo, id[0]);
     } catch (IOException e) {
       throw new GitException(e.getMessage(), e);
     }
   }
 
-  public static @NotNull Blob getByIdentifier(String identifier, RepositoryManager repo) {
+  /**
+   * Hash the file without storing it in the repository
+   */
+  public static @NotNull ObjectId hashOf(Path sourceFilePath, RepositoryManager repo) {
+    try (InputStream source = repo.openWorkingDirFile(sourceFilePath)) {
+      return repo.getHasher().hash(source);
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  public static @NotNull Blob getByIdentifier(ObjectId identifier, RepositoryManager repo) {
     return new Blob(repo, identifier);
   }
 
-  public @NotNull String getSource() throws GitException {
+  /**
+   * Open the stored content, the caller is responsible for closing the stream
+   */
+  public @NotNull InputStream openStream() throws GitException {
     try {
-      String path = String.format(BLOBS_FILE_PATH, getHash());
-      return source = (source != null) ? source : repo.read(Paths.get(path));
+      return repo.openObject(BLOBS_PATH, getHash());
     } catch (IOException e) {
       throw new GitException(e.getMessage(), e);
     }
   }
 
-  public @NotNull String getHash() {
-    return identifier != null ? identifier : Hasher.hashHex(getSource());
+  public @NotNull ObjectId getHash() {
+    return identifier;
   }
 
-  public static void cleanAllExcept(Set<Blob> usedBlobs, RepositoryManager repo) {
-    Set<String> used = usedBlobs.stream()
-        .map(Blob::getHash)
-        .collect(Collectors.toSet());
-
-    repo.list(BLOBS_PATH).stream()
-        .filter(path -> !used.contains(path.getFileName().toString()))
-        .forEach(repo::deleteWorkingDirFile);
+  public static Sweep cleanAllExcept(Set<ObjectId> usedIds, RepositoryManager repo) {
+    return repo.sweep(BLOBS_PATH, usedIds);
   }
 }
@@ -0,0 +1,292 @@
+package git.repo;
+
+import git.Hasher;
+import git.ObjectId;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Repository, that keeps recently read objects in memory in front of another one.<br>
+ * The cache is bounded by the total size of contents, the least recently used objects
+ * are evicted first. Objects are immutable, so entries are dropped only on deletion.
+ * The size defaults to <tt>-Dgi.cache.bytes</tt> or 64 MB.
+ * Buffers returned by {@link #readObject} share the cached content, they must not be modified.
+ */
+public class CachingRepositoryManager implements RepositoryManager {
+  private static final String BYTES_PROPERTY = "gi.cache.bytes";
+  private static final long DEFAULT_BYTES = 64L << 20;
+
+  /**
+   * An object may take at most this part of the cache, so that a single
+   * large one doesn't push out everything else
+   */
+  private static final int MAX_ENTRY_PART = 8;
+
+  private final RepositoryManager repo;
+  private final long maxBytes;
+
+  private final LinkedHashMap<Key, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  public CachingRepositoryManager(RepositoryManager repo) {
+    this(repo, Long.getLong(BYTES_PROPERTY, DEFAULT_BYTES));
+  }
+
+  public CachingRepositoryManager(RepositoryManager repo, long maxBytes) {
+    this.repo = repo;
+    this.maxBytes = maxBytes;
+  }
+
+  @Override public void saveString(String gitFolderPath, String content) {
+    repo.saveString(gitFolderPath, content);
+  }
+
+  @Override public String loadString(String gitFolderPath) {
+    return repo.loadString(gitFolderPath);
+  }
+
+  @Override public void updateString(String gitFolderPath, UnaryOperator<String> update) {
+    repo.updateString(gitFolderPath, update);
+  }
+
+  @Override public void saveBytes(String gitFolderPath, byte[] content) {
+    repo.saveBytes(gitFolderPath, content);
+  }
+
+  @Override public ByteBuffer loadBytes(String gitFolderPath) {
+    return repo.loadBytes(gitFolderPath);
+  }
+
+  @Override public Collection<Path> list(String gitFolderPath) {
+    return repo.list(gitFolderPath);
+  }
+
+  @Override public Collection<Path> listWorkingDir(Path path) {
+    return repo.listWorkingDir(path);
+  }
+
+  @Override public void writeObject(String kind, InputStream content, Supplier<ObjectId> idOnceRead) {
+    repo.writeObject(kind, content, idOnceRead);
+  }
+
+  /**
+   * Cached objects are served from memory. Others are read into memory and cached, if they are small
+   * enough to be cached, larger ones are streamed after the part read already
+   */
+  @Override public InputStream openObject(String kind, ObjectId id) throws IOException {
+    Key key = new Key(kind, id);
+    byte[] content = get(key);
+    if (content != null) {
+      return new ByteArrayInputStream(content);
+    }
+
+    InputStream in = repo.openObject(kind, id);
+    try {
+      byte[] head = IOUtils.toByteArray(new BoundedInputStream(in, getMaxEntryBytes() + 1));
+      if (head.length > getMaxEntryBytes()) {
+        return new SequenceInputStream(new ByteArrayInputStream(head), in);
+      }
+      in.close();
+      put(key, head);
+      return new ByteArrayInputStream(head);
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Cached objects may have been deleted since, by another process, so the repository is asked
+   */
+  @Override public boolean hasObject(String kind, ObjectId id) {
+    return repo.hasObject(kind, id);
+  }
+
+  @Override public Collection<ObjectId> listObjects(String kind) {
+    return repo.listObjects(kind);
+  }
+
+  @Override public long deleteObject(String kind, ObjectId id) {
+    remove(new Key(kind, id));
+    return repo.deleteObject(kind, id);
+  }
+
+  @Override public Sweep sweep(String kind, Set<ObjectId> used) {
+    retain(kind, used);
+    return repo.sweep(kind, used);
+  }
+
+  @Override public void pack(Map<String, Collection<List<ObjectId>>> chainsByKind) {
+    repo.pack(chainsByKind);
+  }
+
+  /**
+   * New objects are cached, as they are usually read soon after
+   */
+  @Override public void saveObject(String kind, ObjectId id, byte[] content) {
+    repo.saveObject(kind, id, content);
+    put(new Key(kind, id), content);
+  }
+
+  @Override public ByteBuffer readObject(String kind, ObjectId id) {
+    Key key = new Key(kind, id);
+    byte[] content = get(key);
+    if (content == null) {
+      ByteBuffer loaded = repo.readObject(kind, id);
+      content = new byte[loaded.remaining()];
+      loaded.get(content);
+      put(key, content);
+    }
+    return ByteBuffer.wrap(content);
+  }
+
+  @Override public InputStream openWorkingDirFile(Path path) throws IOException {
+    return repo.openWorkingDirFile(path);
+  }
+
+  @Override public BasicFileAttributes readAttributes(Path path) throws IOException {
+    return repo.readAttributes(path);
+  }
+
+  @Override public void deleteWorkingDirFile(Path path) {
+    repo.deleteWorkingDirFile(path);
+  }
+
+  @Override public void deleteInnerFile(Path path) {
+    repo.deleteInnerFile(path);
+  }
+
+  @Override public void updateFile(Path path, InputStream content) {
+    repo.updateFile(path, content);
+  }
+
+  @Override public boolean exists(String path) {
+    return repo.exists(path);
+  }
+
+  @Override public RepositoryLock getLock() {
+    return repo.getLock();
+  }
+
+  @Override public void refresh() {
+    repo.refresh();
+  }
+
+  @Override public void initialize(Hasher hasher) {
+    repo.initialize(hasher);
+  }
+
+  @Override public Hasher getHasher() {
+    return repo.getHasher();
+  }
+
+  private synchronized byte[] get(Key key) {
+    byte[] content = cache.get(key);
+    if (content != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return content;
+  }
+
+  private synchronized void put(Key key, byte[] content) {
+    if (content.length > getMaxEntryBytes()) {
+      return;
+    }
+
+    byte[] previous = cache.put(key, content);
+    cachedBytes += content.length - (previous == null ? 0 : previous.length);
+
+    Iterator<byte[]> eldest = cache.values().iterator();
+    while (cachedBytes > maxBytes) {
+      cachedBytes -= eldest.next().length;
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  private synchronized void remove(Key key) {
+    byte[] content = cache.remove(key);
+    if (content != null) {
+      cachedBytes -= content.length;
+    }
+  }
+
+  private synchronized void retain(String kind, Set<ObjectId> used) {
+    Iterator<Map.Entry<Key, byte[]>> entries = cache.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Key, byte[]> entry = entries.next();
+      if (entry.getKey().kind.equals(kind) && !used.contains(entry.getKey().id)) {
+        cachedBytes -= entry.getValue().length;
+        entries.remove();
+      }
+    }
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  private long getMaxEntryBytes() {
+    return maxBytes / MAX_ENTRY_PART;
+  }
+
+  @Override public synchronized String toString() {
+    return String.format("Object cache: %d hits, %d misses, %d evictions, %d of %d bytes used",
+        hits, misses, evictions, cachedBytes, maxBytes);
+  }
+
+  private static final class Key {
+    private final String kind;
+    private final ObjectId id;
+
+    Key(String kind, ObjectId id) {
+      this.kind = kind;
+      this.id = id;
+    }
+
+    @Override public boolean equals(Object obj) {
+      if (this == obj) return true;
+      if (!(obj instanceof Key)) return false;
+
+      Key other = (Key) obj;
+      return id.equals(other.id) && kind.equals(other.kind);
+    }
+
+    @Override public int hashCode() {
+      return 31 * id.hashCode() + kind.hashCode();
+    }
+  }
+}
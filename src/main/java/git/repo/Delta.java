@@ -0,0 +1,122 @@
+package git.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copy / insert delta encoding of one object against another, used in packs.<br>
+ * A delta starts with the lengths of the base and of the result, then goes
+ * a sequence of instructions: either copy a range of the base, or insert literal bytes.
+ */
+class Delta {
+  private static final int BLOCK = 16;
+  private static final int COPY = 0;
+  private static final int INSERT = 1;
+
+  /**
+   * @return delta, that turns <tt>base</tt> into <tt>target</tt>,
+   * or null if it's not shorter than the target itself
+   */
+  static byte[] create(byte[] base, byte[] target) {
+    Map<Integer, Integer> blocks = new HashMap<>();
+    for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+      blocks.putIfAbsent(hash(base, i), i);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeVarInt(out, base.length);
+    writeVarInt(out, target.length);
+
+    int insertFrom = 0;
+    int i = 0;
+    while (i + BLOCK <= target.length) {
+      Integer from = blocks.get(hash(target, i));
+      int length = from == null ? 0 : matchLength(base, from, target, i);
+
+      if (length < BLOCK) {
+        i++;
+        continue;
+      }
+
+      insert(out, target, insertFrom, i);
+      out.write(COPY);
+      writeVarInt(out, from);
+      writeVarInt(out, length);
+      i += length;
+      insertFrom = i;
+
+      if (out.size() >= target.length) return null;
+    }
+    insert(out, target, insertFrom, target.length);
+
+    return out.size() < target.length ? out.toByteArray() : null;
+  }
+
+  static byte[] apply(byte[] base, byte[] delta) {
+    int[] position = {0};
+    if (readVarInt(delta, position) != base.length) {
+      throw new IllegalArgumentException("Delta doesn't match its base");
+    }
+
+    byte[] result = new byte[readVarInt(delta, position)];
+    int written = 0;
+    while (position[0] < delta.length) {
+      int op = delta[position[0]++];
+      if (op == COPY) {
+        int from = readVarInt(delta, position);
+        int length = readVarInt(delta, position);
+        System.arraycopy(base, from, result, written, length);
+        written += length;
+      } else {
+        int length = readVarInt(delta, position);
+        System.arraycopy(delta, position[0], result, written, length);
+        position[0] += length;
+        written += length;
+      }
+    }
+    return result;
+  }
+
+  private static void insert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+    if (from < to) {
+      out.write(INSERT);
+      writeVarInt(out, to - from);
+      out.write(target, from, to - from);
+    }
+  }
+
+  private static int matchLength(byte[] base, int from, byte[] target, int at) {
+    int length = 0;
+    while (from + length < base.length && at + length < target.length
+        && base[from + length] == target[at + length]) {
+      length++;
+    }
+    return length;
+  }
+
+  private static int hash(byte[] data, int from) {
+    int hash = 1;
+    for (int i = from; i < from + BLOCK; i++) {
+      hash = 31 * hash + data[i];
+    }
+    return hash;
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarInt(byte[] data, int[] position) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = data[position[0]++];
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+  }
+}
@@ -1,36 +1,104 @@
 package git.repo;
 
 import git.GitException;
+import git.Hasher;
+import git.ObjectId;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.FileFileFilter;
-import org.apache.commons.io.filefilter.IOFileFilter;
-import org.apache.commons.io.filefilter.NameFileFilter;
-import org.apache.commons.io.filefilter.NotFileFilter;
+import org.apache.commons.io.IOUtils;
+import util.Workers;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 public class FileRepositoryManager implements RepositoryManager {
 
   public static final String GIT = ".gi";
+  private static final String TEMP_PREFIX = "tmp_";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int FAN_OUT = 2;
+  private static final String LEGACY_EXTENSION = ".json";
+  private static final String CONFIG = "config";
+  private static final String HASH = "hash";
+  private static final String LOCK_EXTENSION = ".lock";
+  private static final long LOCK_TIMEOUT_MS = 1000;
+  private static final long LOCK_RETRY_MS = 10;
+  private static final String REPOSITORY_LOCK = "lock";
 
-  private File getFile(String path) {
-    return Paths.get(GIT, path).toFile();
+  /**
+   * File locks are held by the whole process, so managers of the same repository share one
+   */
+  private static final Map<Path, RepositoryLock> LOCKS = new ConcurrentHashMap<>();
+
+  /**
+   * Working directory, relative paths of its files are resolved against it
+   */
+  private final Path root;
+
+  /**
+   * Read from the config on first request
+   */
+  private Hasher hasher = null;
+
+  /**
+   * Repository in the current directory
+   */
+  public FileRepositoryManager() {
+    this(Paths.get(""));
+  }
+
+  public FileRepositoryManager(Path root) {
+    this.root = root;
+  }
+
+  protected File getFile(String path) {
+    return root.resolve(GIT).resolve(path).toFile();
+  }
+
+  private Path getWorkingDirPath(Path path) {
+    return root.resolve(path);
   }
 
   /**
-   * Save string to the file
+   * Save string to the file at once, in the charset {@link #loadString} reads it with
    */
   @Override public void saveString(String gitFolderPath, String content) {
-    try {
-      FileUtils.writeStringToFile(getFile(gitFolderPath), content);
-    } catch (IOException e) {
-      throw new GitException(e.getMessage(), e);
-    }
+    saveBytes(gitFolderPath, content.getBytes(Charset.defaultCharset()));
   }
 
   /**
@@ -39,7 +107,7 @@ public class FileRepositoryManager implements RepositoryManager {
   @Override public String loadString(String gitFolderPath) {
     try {
       File toRead = getFile(gitFolderPath);
-      return toRead.exists()
+      return toRead.isFile()
           ? FileUtils.readFileToString(getFile(gitFolderPath))
           : null;
     } catch (IOException e) {
@@ -48,71 +116,362 @@ public class FileRepositoryManager implements RepositoryManager {
   }
 
   /**
-   * List all files in the git folder
+   * The file is locked by creating <tt>&lt;file&gt;.lock</tt> next to it, the new content
+   * is written to the lock file, which is then renamed over the file.
+   * A lock held by another process is waited for up to {@value #LOCK_TIMEOUT_MS} ms.
+   */
+  @Override public void updateString(String gitFolderPath, UnaryOperator<String> update) {
+    Path path = getFile(gitFolderPath).toPath();
+    Path lock = path.resolveSibling(path.getFileName() + LOCK_EXTENSION);
+
+    try {
+      Files.createDirectories(path.toAbsolutePath().getParent());
+      acquire(lock, gitFolderPath);
+
+      boolean renamed = false;
+      boolean deleted = false;
+      try {
+        String current = Files.exists(path) ? new String(Files.readAllBytes(path), StandardCharsets.UTF_8) : null;
+        String fresh = update.apply(current);
+        if (fresh == null) {
+          deleted = Files.deleteIfExists(path);
+        } else {
+          Files.write(lock, fresh.getBytes(StandardCharsets.UTF_8));
+          Files.move(lock, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          renamed = true;
+        }
+      } finally {
+        // once renamed, the lock file may already belong to another process
+        if (!renamed) {
+          Files.deleteIfExists(lock);
+        }
+      }
+      if (deleted) {
+        deleteEmptyFolders(path.toAbsolutePath().getParent());
+      }
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Folders of deleted files, like ones of refs, are removed, so that they don't stand in the way of a file
+   */
+  private void deleteEmptyFolders(Path folder) {
+    Path gitFolder = root.resolve(GIT).toAbsolutePath();
+    for (; folder.startsWith(gitFolder) && !folder.equals(gitFolder); folder = folder.getParent()) {
+      try {
+        Files.delete(folder);
+      } catch (IOException notEmpty) {
+        return;
+      }
+    }
+  }
+
+  private static void acquire(Path lock, String gitFolderPath) throws IOException {
+    long deadline = System.currentTimeMillis() + LOCK_TIMEOUT_MS;
+    while (true) {
+      try {
+        Files.createFile(lock);
+        return;
+      } catch (NoSuchFileException e) {
+        // the folder was removed as empty by another process
+        Files.createDirectories(lock.getParent());
+      } catch (FileAlreadyExistsException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new GitException("Unable to lock " + gitFolderPath + ", it's being updated by another process. " +
+              "If no gi process is running, remove " + lock);
+        }
+        try {
+          Thread.sleep(LOCK_RETRY_MS);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw new GitException("Interrupted while waiting for " + lock, interrupted);
+        }
+      }
+    }
+  }
+
+  @Override public void saveBytes(String gitFolderPath, byte[] content) {
+    replaceFile(getFile(gitFolderPath).toPath(), new ByteArrayInputStream(content));
+  }
+
+  @Override public ByteBuffer loadBytes(String gitFolderPath) {
+    try {
+      Path toRead = getFile(gitFolderPath).toPath();
+      return Files.isRegularFile(toRead)
+          ? ByteBuffer.wrap(Files.readAllBytes(toRead))
+          : null;
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * List files in the folder and its subfolders, relative to it
+   */
+  @Override public Collection<Path> list(String gitFolderPath) {
+    Path folder = getFile(gitFolderPath).toPath();
+    if (!Files.isDirectory(folder)) {
+      return Collections.emptyList();
+    }
+
+    try (Stream<Path> files = Files.walk(folder)) {
+      return files.filter(Files::isRegularFile).map(folder::relativize).collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * List files of the working directory, except the git folder.
+   * Folders are walked in parallel, so that stat latency overlaps.
+   *
+   * @return files, sorted by path
+   */
+  @Override public Collection<Path> listWorkingDir(Path path) {
+    if (!Files.isDirectory(getWorkingDirPath(path))) {
+      return Collections.singletonList(path);
+    }
+
+    List<Path> files = Workers.getPool().invoke(new ListTask(root, path));
+    files.sort(Comparator.naturalOrder());
+    return files;
+  }
+
+  private static class ListTask extends RecursiveTask<List<Path>> {
+    private final Path root;
+    private final Path dir;
+
+    ListTask(Path root, Path dir) {
+      this.root = root;
+      this.dir = dir;
+    }
+
+    @Override protected List<Path> compute() {
+      List<Path> files = new ArrayList<>();
+      List<ListTask> subdirs = new ArrayList<>();
+
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(root.resolve(dir))) {
+        for (Path entry : entries) {
+          Path path = dir.resolve(entry.getFileName());
+          if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+            if (!entry.getFileName().toString().equals(GIT)) {
+              subdirs.add(new ListTask(root, path));
+            }
+          } else if (Files.isRegularFile(entry)) {
+            files.add(path);
+          }
+        }
+      } catch (IOException e) {
+        throw new GitException(e.getMessage(), e);
+      }
+
+      invokeAll(subdirs);
+      subdirs.forEach(task -> files.addAll(task.join()));
+      return files;
+    }
+  }
+
+  /**
+   * Objects are stored zlib-compressed in fan-out folders, named after
+   * the first two characters of the identifier: <tt>blobs/ab/cdef...</tt>
    */
-  public Collection<Path> list(String gitFolderPath) {
-    return FileUtils.listFiles(getFile(gitFolderPath), null, false)
-        .stream().map(File::toPath).collect(Collectors.toList());
+  private Path getObjectPath(String kind, ObjectId id) {
+    String hex = id.toHex();
+    return getFile(kind).toPath().resolve(hex.substring(0, FAN_OUT)).resolve(hex.substring(FAN_OUT));
   }
 
-  public Collection<File> listWorkingDir(File where) {
-    IOFileFilter notGitFolder =
-        new NotFileFilter(new NameFileFilter(FileRepositoryManager.GIT));
-    return FileUtils.listFiles(where, FileFileFilter.FILE, notGitFolder);
+  /**
+   * Older repositories keep plain objects right in the kind folder,
+   * like <tt>blobs/abcdef...</tt> or <tt>trees/abcdef....json</tt>
+   */
+  private Path getLegacyObjectPath(String kind, ObjectId id) {
+    Path dir = getFile(kind).toPath();
+    Path plain = dir.resolve(id.toHex());
+    return Files.exists(plain) ? plain : dir.resolve(id.toHex() + LEGACY_EXTENSION);
   }
 
   /**
-   * Copy file <tt>originalPath</tt> to <tt>path</tt>.
-   * Possibly with compression.
+   * Compress <tt>content</tt> to a temporary file in the <tt>kind</tt> folder,
+   * then rename it to the identifier, that is known once the stream is consumed.
    */
-  @Override public void writeContentTo(String gitFolderPath, Path originalPath) {
+  @Override public void writeObject(String kind, InputStream content, Supplier<ObjectId> idOnceRead) {
     try {
-      FileUtils.copyFile(originalPath.toFile(), getFile(gitFolderPath));
+      Path dir = getFile(kind).toPath();
+      Files.createDirectories(dir);
+
+      Path temporary = Files.createTempFile(dir, TEMP_PREFIX, null);
+      try {
+        try (OutputStream out = new DeflaterOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_SIZE))) {
+          IOUtils.copy(content, out, BUFFER_SIZE);
+        }
+
+        ObjectId id = idOnceRead.get();
+        if (!hasObject(kind, id)) {
+          Path target = getObjectPath(kind, id);
+          Files.createDirectories(target.getParent());
+          Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+      } catch (FileAlreadyExistsException ignored) {
+        // the same object was written concurrently
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
     } catch (IOException e) {
       throw new GitException(e.getMessage(), e);
     }
   }
 
   /**
-   * Read content of the file, possibly with decompression
+   * Open the object, decompressing it unless it's stored in the legacy layout
+   */
+  @Override public InputStream openObject(String kind, ObjectId id) throws IOException {
+    Path path = getObjectPath(kind, id);
+    if (Files.exists(path)) {
+      return new InflaterInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+    }
+    return new BufferedInputStream(Files.newInputStream(getLegacyObjectPath(kind, id)), BUFFER_SIZE);
+  }
+
+  @Override public boolean hasObject(String kind, ObjectId id) {
+    return Files.exists(getObjectPath(kind, id)) || Files.exists(getLegacyObjectPath(kind, id));
+  }
+
+  /**
+   * List identifiers of objects in both layouts
+   */
+  @Override public Collection<ObjectId> listObjects(String kind) {
+    File[] entries = getFile(kind).listFiles();
+    if (entries == null) {
+      return Collections.emptyList();
+    }
+
+    List<ObjectId> ids = new ArrayList<>();
+    for (File entry : entries) {
+      String name = entry.getName();
+      if (entry.isDirectory() && name.length() == FAN_OUT) {
+        String[] rest = entry.list();
+        if (rest != null) {
+          for (String suffix : rest) addIfValid(ids, name + suffix);
+        }
+      } else if (entry.isFile()) {
+        addIfValid(ids, name.endsWith(LEGACY_EXTENSION)
+            ? name.substring(0, name.length() - LEGACY_EXTENSION.length()) : name);
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Temporary files are skipped
    */
-  @Override public String read(Path path) {
+  private static void addIfValid(List<ObjectId> ids, String hex) {
+    if (ObjectId.isHex(hex)) {
+      ids.add(ObjectId.fromHex(hex));
+    }
+  }
+
+  @Override public long deleteObject(String kind, ObjectId id) {
     try {
-      File gitFolderFile = Paths.get(GIT).resolve(path).toFile();
-      File toOpen = gitFolderFile.exists() ? gitFolderFile : path.toFile();
-      return FileUtils.readFileToString(toOpen);
+      return delete(getObjectPath(kind, id)) + delete(getLegacyObjectPath(kind, id));
     } catch (IOException e) {
       throw new GitException(e.getMessage(), e);
     }
   }
 
+  private static long delete(Path path) throws IOException {
+    try {
+      long size = Files.size(path);
+      Files.delete(path);
+      return size;
+    } catch (NoSuchFileException e) {
+      return 0;
+    }
+  }
+
+  @Override public InputStream openWorkingDirFile(Path path) throws IOException {
+    return new BufferedInputStream(Files.newInputStream(getWorkingDirPath(path)), BUFFER_SIZE);
+  }
+
+  @Override public BasicFileAttributes readAttributes(Path path) throws IOException {
+    return Files.readAttributes(getWorkingDirPath(path), BasicFileAttributes.class);
+  }
+
   @Override public void deleteWorkingDirFile(Path path) {
     try {
-      FileUtils.forceDelete(path.toFile());
+      FileUtils.forceDelete(getWorkingDirPath(path).toFile());
     } catch (IOException e) {
       throw new GitException(e.getMessage(), e);
     }
   }
 
   @Override public void deleteInnerFile(Path path) {
-    deleteWorkingDirFile(Paths.get(GIT, path.toString()));
+    deleteWorkingDirFile(getFile(path.toString()).toPath());
+  }
+
+  @Override public void updateFile(Path path, InputStream content) {
+    replaceFile(getWorkingDirPath(path), content);
   }
 
-  @Override public void updateFile(Path path, String content) {
+  /**
+   * Write the file through a temporary one, so that it's never seen half-written
+   */
+  private static void replaceFile(Path path, InputStream content) {
     try {
-      FileUtils.writeStringToFile(path.toFile(), content);
+      Path dir = path.toAbsolutePath().getParent();
+      Files.createDirectories(dir);
+
+      // unlike temp files, created files get the default permissions
+      Path temporary = dir.resolve(TEMP_PREFIX + UUID.randomUUID());
+      try {
+        try (OutputStream out = Files.newOutputStream(temporary, StandardOpenOption.CREATE_NEW)) {
+          IOUtils.copy(content, out, BUFFER_SIZE);
+        }
+        if (Files.exists(path) && Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class)) {
+          Files.setPosixFilePermissions(temporary, Files.getPosixFilePermissions(path));
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
     } catch (IOException e) {
       throw new GitException(e.getMessage(), e);
     }
   }
 
   @Override public boolean exists(String path) {
-    if (path.startsWith("commits/"))
-      return getFile(path).exists();
-    return Paths.get(path).toFile().exists();
+    return getWorkingDirPath(Paths.get(path)).toFile().exists();
   }
 
-  @Override public void initialize() {
-    Paths.get(GIT).toFile().mkdirs();
+  @Override public RepositoryLock getLock() {
+    Path file = getFile(REPOSITORY_LOCK).toPath().toAbsolutePath().normalize();
+    return LOCKS.computeIfAbsent(file, RepositoryLock::new);
+  }
+
+  @Override public void initialize(Hasher hasher) {
+    getFile("").mkdirs();
+
+    saveString(CONFIG, HASH + "=" + hasher.getName() + "\n");
+    this.hasher = hasher;
+  }
+
+  @Override public Hasher getHasher() {
+    if (hasher == null) {
+      String content = loadString(CONFIG);
+      Properties config = new Properties();
+      if (content != null) {
+        try {
+          config.load(new StringReader(content));
+        } catch (IOException e) {
+          throw new GitException(e.getMessage(), e);
+        }
+      }
+
+      String name = config.getProperty(HASH);
+      hasher = name == null ? Hasher.DEFAULT : Hasher.forName(name);
+    }
+    return hasher;
   }
 }
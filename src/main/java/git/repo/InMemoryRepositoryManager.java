@@ -0,0 +1,255 @@
+package git.repo;
+
+import git.GitException;
+import git.Hasher;
+import git.ObjectId;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Repository, that keeps the git folder and the working directory in memory.<br>
+ * Objects, inner files and working files are byte arrays, nothing touches the disk,
+ * so that tests, benchmarks and services can run many repositories side by side.
+ * It's safe to use from several threads at once.
+ */
+public class InMemoryRepositoryManager implements RepositoryManager {
+  private static final Path WHOLE_WORKING_DIR = Paths.get("");
+
+  private final Map<String, byte[]> innerFiles = new ConcurrentHashMap<>();
+  private final Map<String, Object> locks = new ConcurrentHashMap<>();
+  private final RepositoryLock lock = new RepositoryLock();
+  private final Map<String, Map<ObjectId, byte[]>> objects = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListMap<Path, WorkingFile> workingFiles = new ConcurrentSkipListMap<>();
+
+  /**
+   * Every write gets a new file key, so that the stat cache notices rewrites within a millisecond
+   */
+  private final AtomicLong writes = new AtomicLong();
+  private volatile Hasher hasher = Hasher.DEFAULT;
+
+  private static class WorkingFile implements BasicFileAttributes {
+    final byte[] content;
+    final FileTime modified;
+    final long key;
+
+    WorkingFile(byte[] content, FileTime modified, long key) {
+      this.content = content;
+      this.modified = modified;
+      this.key = key;
+    }
+
+    @Override public FileTime lastModifiedTime() {
+      return modified;
+    }
+
+    @Override public FileTime lastAccessTime() {
+      return modified;
+    }
+
+    @Override public FileTime creationTime() {
+      return modified;
+    }
+
+    @Override public boolean isRegularFile() {
+      return true;
+    }
+
+    @Override public boolean isDirectory() {
+      return false;
+    }
+
+    @Override public boolean isSymbolicLink() {
+      return false;
+    }
+
+    @Override public boolean isOther() {
+      return false;
+    }
+
+    @Override public long size() {
+      return content.length;
+    }
+
+    @Override public Object fileKey() {
+      return key;
+    }
+  }
+
+  @Override public void saveString(String gitFolderPath, String content) {
+    innerFiles.put(gitFolderPath, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override public String loadString(String gitFolderPath) {
+    byte[] content = innerFiles.get(gitFolderPath);
+    return content == null ? null : new String(content, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Updates of the same file are serialized on a lock object of its own,
+   * so that an update may change other files
+   */
+  @Override public void updateString(String gitFolderPath, UnaryOperator<String> update) {
+    synchronized (locks.computeIfAbsent(gitFolderPath, path -> new Object())) {
+      String fresh = update.apply(loadString(gitFolderPath));
+      if (fresh == null) {
+        innerFiles.remove(gitFolderPath);
+      } else {
+        saveString(gitFolderPath, fresh);
+      }
+    }
+  }
+
+  @Override public void saveBytes(String gitFolderPath, byte[] content) {
+    innerFiles.put(gitFolderPath, content.clone());
+  }
+
+  @Override public ByteBuffer loadBytes(String gitFolderPath) {
+    byte[] content = innerFiles.get(gitFolderPath);
+    return content == null ? null : ByteBuffer.wrap(content).asReadOnlyBuffer();
+  }
+
+  @Override public Collection<Path> list(String gitFolderPath) {
+    Path folder = Paths.get(gitFolderPath);
+    return innerFiles.keySet().stream()
+        .map(Paths::get)
+        .filter(path -> path.startsWith(folder) && !path.equals(folder))
+        .map(folder::relativize)
+        .collect(Collectors.toList());
+  }
+
+  @Override public Collection<Path> listWorkingDir(Path path) {
+    if (path.equals(WHOLE_WORKING_DIR)) {
+      return new ArrayList<>(workingFiles.keySet());
+    }
+
+    List<Path> files = workingFiles.keySet().stream()
+        .filter(file -> file.startsWith(path))
+        .collect(Collectors.toList());
+    return files.isEmpty() ? Collections.singletonList(path) : files;
+  }
+
+  @Override public void writeObject(String kind, InputStream content, Supplier<ObjectId> idOnceRead) {
+    try {
+      byte[] bytes = IOUtils.toByteArray(content);
+      objectsOf(kind).putIfAbsent(idOnceRead.get(), bytes);
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  @Override public void saveObject(String kind, ObjectId id, byte[] content) {
+    objectsOf(kind).putIfAbsent(id, content.clone());
+  }
+
+  @Override public InputStream openObject(String kind, ObjectId id) throws IOException {
+    return new ByteArrayInputStream(getObject(kind, id));
+  }
+
+  @Override public ByteBuffer readObject(String kind, ObjectId id) {
+    try {
+      return ByteBuffer.wrap(getObject(kind, id)).asReadOnlyBuffer();
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  private byte[] getObject(String kind, ObjectId id) throws IOException {
+    byte[] content = objectsOf(kind).get(id);
+    if (content == null) {
+      throw new NoSuchFileException(kind + id);
+    }
+    return content;
+  }
+
+  private Map<ObjectId, byte[]> objectsOf(String kind) {
+    return objects.computeIfAbsent(kind, k -> new ConcurrentHashMap<>());
+  }
+
+  @Override public boolean hasObject(String kind, ObjectId id) {
+    return objectsOf(kind).containsKey(id);
+  }
+
+  @Override public Collection<ObjectId> listObjects(String kind) {
+    return new ArrayList<>(objectsOf(kind).keySet());
+  }
+
+  @Override public long deleteObject(String kind, ObjectId id) {
+    byte[] content = objectsOf(kind).remove(id);
+    return content == null ? 0 : content.length;
+  }
+
+  /**
+   * Objects are in memory already, there is nothing to pack
+   */
+  @Override public void pack(Map<String, Collection<List<ObjectId>>> chainsByKind) {
+  }
+
+  @Override public InputStream openWorkingDirFile(Path path) throws IOException {
+    return new ByteArrayInputStream(getWorkingFile(path).content);
+  }
+
+  @Override public BasicFileAttributes readAttributes(Path path) throws IOException {
+    return getWorkingFile(path);
+  }
+
+  private WorkingFile getWorkingFile(Path path) throws NoSuchFileException {
+    WorkingFile file = workingFiles.get(path);
+    if (file == null) {
+      throw new NoSuchFileException(path.toString());
+    }
+    return file;
+  }
+
+  @Override public void deleteWorkingDirFile(Path path) {
+    Collection<Path> files = listWorkingDir(path);
+    if (!workingFiles.keySet().removeAll(files)) {
+      throw new GitException("File does not exist: " + path);
+    }
+  }
+
+  @Override public void deleteInnerFile(Path path) {
+    innerFiles.remove(path.toString());
+  }
+
+  @Override public void updateFile(Path path, InputStream content) {
+    try {
+      workingFiles.put(path, new WorkingFile(IOUtils.toByteArray(content),
+          FileTime.fromMillis(System.currentTimeMillis()), writes.incrementAndGet()));
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  @Override public boolean exists(String path) {
+    return workingFiles.containsKey(Paths.get(path));
+  }
+
+  @Override public RepositoryLock getLock() {
+    return lock;
+  }
+
+  @Override public void initialize(Hasher hasher) {
+    this.hasher = hasher;
+  }
+
+  @Override public Hasher getHasher() {
+    return hasher;
+  }
+}
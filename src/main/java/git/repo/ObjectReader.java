@@ -0,0 +1,59 @@
+package git.repo;
+
+import git.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads objects written by {@link ObjectWriter} right from the buffer, without copying it
+ */
+public class ObjectReader {
+  private final ByteBuffer buffer;
+
+  public ObjectReader(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  public boolean hasRemaining() {
+    return buffer.hasRemaining();
+  }
+
+  public int readByte() {
+    return buffer.get() & 0xFF;
+  }
+
+  public int readVarInt() {
+    return (int) readVarLong();
+  }
+
+  public long readVarLong() {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+  }
+
+  public String readString() {
+    int length = readVarInt();
+    String value;
+    if (buffer.hasArray()) {
+      value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+    } else {
+      byte[] bytes = new byte[length];
+      buffer.duplicate().get(bytes);
+      value = new String(bytes, StandardCharsets.UTF_8);
+    }
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  /**
+   * Read raw identifier of <tt>length</tt> bytes
+   */
+  public ObjectId readId(int length) {
+    return ObjectId.read(buffer, length);
+  }
+}
@@ -0,0 +1,51 @@
+package git.repo;
+
+import git.ObjectId;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the canonical binary form of an object: varint lengths, UTF-8 strings, raw hashes
+ */
+public class ObjectWriter {
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+  public ObjectWriter writeByte(int value) {
+    out.write(value);
+    return this;
+  }
+
+  public ObjectWriter writeVarInt(int value) {
+    return writeVarLong(value & 0xFFFFFFFFL);
+  }
+
+  public ObjectWriter writeVarLong(long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+    return this;
+  }
+
+  public ObjectWriter writeString(String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(bytes.length);
+    out.write(bytes, 0, bytes.length);
+    return this;
+  }
+
+  /**
+   * Write identifier as raw bytes
+   */
+  public ObjectWriter writeId(ObjectId id) {
+    byte[] raw = id.toRaw();
+    out.write(raw, 0, raw.length);
+    return this;
+  }
+
+  public byte[] toByteArray() {
+    return out.toByteArray();
+  }
+}
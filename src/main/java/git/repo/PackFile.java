@@ -0,0 +1,251 @@
+package git.repo;
+
+import git.ObjectId;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A pack of objects with its index.<br>
+ * The pack is a sequence of zlib-compressed entries, each one either the full content of an object
+ * or a {@link Delta} against another entry of the same pack.
+ * The index is a sorted table of object identifiers and offsets of their entries in the pack,
+ * it's memory-mapped and searched with a binary search.
+ */
+class PackFile implements Closeable {
+  static final String PACK_EXTENSION = ".pack";
+  static final String INDEX_EXTENSION = ".idx";
+  static final int PACK_MAGIC = 0x4749504B;  // GIPK
+  static final int INDEX_MAGIC = 0x47494958; // GIIX
+  static final int VERSION = 2;
+
+  /**
+   * Packs of the first version keep lengths of compressed entries in ints
+   */
+  static final int INT_LENGTH_VERSION = 1;
+  static final byte FULL = 0;
+  static final byte DELTA = 1;
+  static final int FAN_OUT_SIZE = 256;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path indexPath;
+  private final Path packPath;
+  private final FileChannel pack;
+  private final MappedByteBuffer index;
+  private final List<String> kinds = new ArrayList<>();
+  private final int[] fanOut = new int[FAN_OUT_SIZE];
+  private final int idLength;
+  private final int entriesStart;
+  private final int entrySize;
+  private final boolean intLengths;
+  private final int entryHeaderSize;
+
+  PackFile(Path indexPath) throws IOException {
+    this.indexPath = indexPath;
+    String name = indexPath.getFileName().toString();
+    this.packPath = indexPath.resolveSibling(
+        name.substring(0, name.length() - INDEX_EXTENSION.length()) + PACK_EXTENSION);
+
+    try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+      index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    int version = index.getInt() == INDEX_MAGIC ? index.getInt() : -1;
+    if (version != VERSION && version != INT_LENGTH_VERSION) {
+      throw new IOException(indexPath + " is not a pack index");
+    }
+    intLengths = version == INT_LENGTH_VERSION;
+    entryHeaderSize = 1 + Long.BYTES + (intLengths ? Integer.BYTES : Long.BYTES);
+
+    idLength = index.get();
+    int kindsCount = index.getShort();
+    for (int i = 0; i < kindsCount; i++) {
+      byte[] kind = new byte[index.getShort()];
+      index.get(kind);
+      kinds.add(new String(kind, StandardCharsets.UTF_8));
+    }
+    for (int i = 0; i < FAN_OUT_SIZE; i++) {
+      fanOut[i] = index.getInt();
+    }
+
+    entriesStart = index.position();
+    entrySize = idLength + 1 + Long.BYTES;
+    pack = FileChannel.open(packPath, StandardOpenOption.READ);
+  }
+
+  Path getIndexPath() {
+    return indexPath;
+  }
+
+  boolean has(String kind, ObjectId id) {
+    return offsetOf(kind, id) >= 0;
+  }
+
+  /**
+   * @return identifiers of all objects of the <tt>kind</tt> in the pack
+   */
+  List<ObjectId> list(String kind) {
+    int kindIndex = kinds.indexOf(kind);
+    List<ObjectId> ids = new ArrayList<>();
+    ByteBuffer entries = index.duplicate();
+
+    for (int i = 0, count = fanOut[FAN_OUT_SIZE - 1]; i < count; i++) {
+      int at = entriesStart + i * entrySize;
+      if (index.get(at + idLength) == kindIndex) {
+        entries.position(at);
+        ids.add(ObjectId.read(entries, idLength));
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Open the object, full entries are streamed, deltas are resolved in memory
+   */
+  InputStream open(String kind, ObjectId id) throws IOException {
+    long offset = offsetOf(kind, id);
+    if (offset < 0) {
+      throw new IOException(kind + id + " is not in " + packPath);
+    }
+
+    ByteBuffer header = readHeader(offset);
+    return header.get() == FULL
+        ? openCompressed(offset, header)
+        : new ByteArrayInputStream(resolve(offset));
+  }
+
+  /**
+   * Binary search of the identifier in the index, narrowed by the fan-out table
+   *
+   * @return offset of the entry in the pack, or -1
+   */
+  private long offsetOf(String kind, ObjectId id) {
+    if (id.length() != idLength) return -1;
+    byte[] raw = id.toRaw();
+
+    int first = raw[0] & 0xFF;
+    int low = first == 0 ? 0 : fanOut[first - 1];
+    int high = fanOut[first] - 1;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int cmp = compareAt(middle, raw);
+      if (cmp < 0) {
+        low = middle + 1;
+      } else if (cmp > 0) {
+        high = middle - 1;
+      } else {
+        return offsetOfKind(middle, raw, kinds.indexOf(kind));
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The same content may be stored as objects of different kinds, they are adjacent in the index
+   */
+  private long offsetOfKind(int found, byte[] raw, int kindIndex) {
+    int i = found;
+    while (i > 0 && compareAt(i - 1, raw) == 0) i--;
+
+    for (int count = fanOut[FAN_OUT_SIZE - 1]; i < count && compareAt(i, raw) == 0; i++) {
+      int at = entriesStart + i * entrySize;
+      if (index.get(at + idLength) == kindIndex) {
+        return index.getLong(at + idLength + 1);
+      }
+    }
+    return -1;
+  }
+
+  private int compareAt(int entry, byte[] raw) {
+    int at = entriesStart + entry * entrySize;
+    for (int i = 0; i < idLength; i++) {
+      int cmp = Integer.compare(index.get(at + i) & 0xFF, raw[i] & 0xFF);
+      if (cmp != 0) return cmp;
+    }
+    return 0;
+  }
+
+  /**
+   * @return content of the entry, applying deltas down to the full base
+   */
+  private byte[] resolve(long offset) throws IOException {
+    ByteBuffer header = readHeader(offset);
+    byte type = header.get();
+    long base = header.getLong();
+
+    byte[] content;
+    try (InputStream in = openCompressed(offset, header)) {
+      content = IOUtils.toByteArray(in);
+    }
+    return type == FULL ? content : Delta.apply(resolve(base), content);
+  }
+
+  private ByteBuffer readHeader(long offset) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(entryHeaderSize);
+    while (header.hasRemaining()) {
+      if (pack.read(header, offset + header.position()) < 0) {
+        throw new IOException(packPath + " is truncated");
+      }
+    }
+    header.flip();
+    return header;
+  }
+
+  private InputStream openCompressed(long offset, ByteBuffer header) {
+    long start = offset + entryHeaderSize;
+    long end = start + (intLengths ? header.getInt(1 + Long.BYTES) : header.getLong(1 + Long.BYTES));
+    return new InflaterInputStream(new BufferedInputStream(new Slice(start, end), BUFFER_SIZE));
+  }
+
+  void delete() throws IOException {
+    close();
+    Files.deleteIfExists(indexPath);
+    Files.deleteIfExists(packPath);
+  }
+
+  @Override public void close() throws IOException {
+    pack.close();
+  }
+
+  /**
+   * Reads a range of the pack with positional reads, so that any number of them may be open at once
+   */
+  private class Slice extends InputStream {
+    private long position;
+    private final long end;
+
+    Slice(long start, long end) {
+      this.position = start;
+      this.end = end;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (position >= end) return -1;
+
+      int read = pack.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, end - position)), position);
+      if (read > 0) position += read;
+      return read;
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package git.repo;
+
+import git.ObjectId;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.Deflater;
+
+import static git.repo.PackFile.*;
+
+/**
+ * Writes objects to a new {@link PackFile}
+ */
+class PackWriter {
+  private static final String PACK_PREFIX = "pack-";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_DELTA_SIZE = 16 * 1024 * 1024;
+  private static final int MAX_DELTA_DEPTH = 10;
+
+  private final RepositoryManager source;
+  private final List<String> kinds = new ArrayList<>();
+  private final List<Entry> entries = new ArrayList<>();
+  private final Map<String, Set<ObjectId>> written = new HashMap<>();
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final byte[] compressed = new byte[BUFFER_SIZE];
+
+  private static class Entry {
+    final ObjectId id;
+    final int kind;
+    final long offset;
+
+    Entry(ObjectId id, int kind, long offset) {
+      this.id = id;
+      this.kind = kind;
+      this.offset = offset;
+    }
+  }
+
+  private PackWriter(RepositoryManager source) {
+    this.source = source;
+  }
+
+  /**
+   * Write objects, read from <tt>source</tt>, to a new pack in <tt>dir</tt>.
+   * Every list in <tt>chainsByKind</tt> holds versions of the same content, newest first,
+   * the newest is stored in full, older ones as deltas of the previous version.
+   *
+   * @return path of the index of the written pack
+   */
+  static Path write(Path dir, Map<String, Collection<List<ObjectId>>> chainsByKind,
+                    RepositoryManager source) throws IOException {
+    return new PackWriter(source).write(dir, chainsByKind);
+  }
+
+  private Path write(Path dir, Map<String, Collection<List<ObjectId>>> chainsByKind) throws IOException {
+    Path temporaryPack = Files.createTempFile(dir, PACK_PREFIX, PACK_EXTENSION);
+    Path temporaryIndex = Files.createTempFile(dir, PACK_PREFIX, INDEX_EXTENSION);
+
+    try {
+      try (RandomAccessFile pack = new RandomAccessFile(temporaryPack.toFile(), "rw")) {
+        pack.writeInt(PACK_MAGIC);
+        pack.writeInt(VERSION);
+        pack.writeInt(0);
+
+        for (Map.Entry<String, Collection<List<ObjectId>>> kind : chainsByKind.entrySet()) {
+          kinds.add(kind.getKey());
+          for (List<ObjectId> chain : kind.getValue()) {
+            writeChain(pack, kinds.size() - 1, chain);
+          }
+        }
+
+        pack.seek(2 * Integer.BYTES);
+        pack.writeInt(entries.size());
+      }
+
+      entries.sort(Comparator.<Entry, ObjectId>comparing(entry -> entry.id).thenComparingInt(entry -> entry.kind));
+      writeIndex(temporaryIndex);
+
+      String name = PACK_PREFIX + packName();
+      Files.move(temporaryPack, dir.resolve(name + PACK_EXTENSION),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Path index = dir.resolve(name + INDEX_EXTENSION);
+      Files.move(temporaryIndex, index,
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return index;
+    } finally {
+      Files.deleteIfExists(temporaryPack);
+      Files.deleteIfExists(temporaryIndex);
+    }
+  }
+
+  private void writeChain(RandomAccessFile pack, int kind, List<ObjectId> chain) throws IOException {
+    byte[] previous = null;
+    long previousOffset = 0;
+    int depth = 0;
+
+    Set<ObjectId> writtenOfKind = written.computeIfAbsent(kinds.get(kind), k -> new HashSet<>());
+    for (ObjectId id : chain) {
+      if (!writtenOfKind.add(id)) continue;
+
+      long offset = pack.getFilePointer();
+      entries.add(new Entry(id, kind, offset));
+
+      try (InputStream in = source.openObject(kinds.get(kind), id)) {
+        byte[] head = IOUtils.toByteArray(new BoundedInputStream(in, MAX_DELTA_SIZE + 1));
+        byte[] content = head.length <= MAX_DELTA_SIZE ? head : null;
+
+        byte[] delta = content != null && previous != null && depth < MAX_DELTA_DEPTH
+            ? Delta.create(previous, content) : null;
+
+        if (delta != null) {
+          writeEntry(pack, DELTA, previousOffset, new ByteArrayInputStream(delta));
+          depth++;
+        } else {
+          InputStream full = content != null ? new ByteArrayInputStream(content)
+              : new SequenceInputStream(new ByteArrayInputStream(head), in);
+          writeEntry(pack, FULL, 0, full);
+          depth = 0;
+        }
+
+        previous = content;
+        previousOffset = offset;
+      }
+    }
+  }
+
+  /**
+   * Entry is: type, offset of the delta base, length of the compressed content, compressed content
+   */
+  private void writeEntry(RandomAccessFile pack, byte type, long base, InputStream content) throws IOException {
+    pack.writeByte(type);
+    pack.writeLong(base);
+    long lengthAt = pack.getFilePointer();
+    pack.writeLong(0);
+
+    Deflater deflater = new Deflater();
+    try {
+      for (int read; (read = content.read(buffer)) >= 0; ) {
+        deflater.setInput(buffer, 0, read);
+        while (!deflater.needsInput()) {
+          pack.write(compressed, 0, deflater.deflate(compressed));
+        }
+      }
+      deflater.finish();
+      while (!deflater.finished()) {
+        pack.write(compressed, 0, deflater.deflate(compressed));
+      }
+    } finally {
+      deflater.end();
+    }
+
+    long end = pack.getFilePointer();
+    pack.seek(lengthAt);
+    pack.writeLong(end - lengthAt - Long.BYTES);
+    pack.seek(end);
+  }
+
+  private void writeIndex(Path path) throws IOException {
+    int[] fanOut = new int[FAN_OUT_SIZE];
+    for (Entry entry : entries) {
+      fanOut[entry.id.firstByte()]++;
+    }
+    for (int i = 1; i < FAN_OUT_SIZE; i++) {
+      fanOut[i] += fanOut[i - 1];
+    }
+
+    try (OutputStream raw = Files.newOutputStream(path);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(raw, BUFFER_SIZE))) {
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(VERSION);
+      out.writeByte(entries.isEmpty() ? 0 : entries.get(0).id.length());
+      out.writeShort(kinds.size());
+      for (String kind : kinds) {
+        byte[] bytes = kind.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+      }
+      for (int count : fanOut) {
+        out.writeInt(count);
+      }
+      for (Entry entry : entries) {
+        out.write(entry.id.toRaw());
+        out.writeByte(entry.kind);
+        out.writeLong(entry.offset);
+      }
+    }
+  }
+
+  /**
+   * Packs are named after the hash of identifiers of their objects
+   */
+  private String packName() {
+    MessageDigest digest = DigestUtils.getSha1Digest();
+    entries.forEach(entry -> digest.update(entry.id.toRaw()));
+    return Hex.encodeHexString(digest.digest());
+  }
+}
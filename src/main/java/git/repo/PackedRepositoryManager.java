@@ -0,0 +1,134 @@
+package git.repo;
+
+import git.GitException;
+import git.ObjectId;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Repository, that keeps objects in packs along with loose ones.<br>
+ * New objects are written loose, {@link #pack(Map)} moves them to a single pack.
+ * Only loose objects are deleted one by one, packed ones are dropped on the next repack.
+ */
+public class PackedRepositoryManager extends FileRepositoryManager {
+  private static final String PACKS_PATH = "packs/";
+
+  private List<PackFile> packs = null;
+
+  /**
+   * Repository in the current directory
+   */
+  public PackedRepositoryManager() {
+  }
+
+  public PackedRepositoryManager(Path root) {
+    super(root);
+  }
+
+  private List<PackFile> getPacks() {
+    if (packs == null) {
+      packs = new ArrayList<>();
+      File[] indexes = getFile(PACKS_PATH).listFiles((dir, name) -> name.endsWith(PackFile.INDEX_EXTENSION));
+
+      try {
+        for (File index : indexes == null ? new File[0] : indexes) {
+          packs.add(new PackFile(index.toPath()));
+        }
+      } catch (IOException e) {
+        throw new GitException(e.getMessage(), e);
+      }
+    }
+    return packs;
+  }
+
+  @Override public InputStream openObject(String kind, ObjectId id) throws IOException {
+    for (PackFile pack : getPacks()) {
+      if (pack.has(kind, id)) return pack.open(kind, id);
+    }
+    if (!super.hasObject(kind, id) && rescanPacks()) {
+      return openObject(kind, id);
+    }
+    return super.openObject(kind, id);
+  }
+
+  @Override public boolean hasObject(String kind, ObjectId id) {
+    return getPacks().stream().anyMatch(pack -> pack.has(kind, id)) || super.hasObject(kind, id);
+  }
+
+  /**
+   * Another process may have repacked objects, so that a missing one is in a new pack
+   *
+   * @return whether the packs have changed
+   */
+  private boolean rescanPacks() {
+    if (packs == null) {
+      return false;
+    }
+
+    File[] indexes = getFile(PACKS_PATH).listFiles((dir, name) -> name.endsWith(PackFile.INDEX_EXTENSION));
+    Set<Path> current = new HashSet<>();
+    for (File index : indexes == null ? new File[0] : indexes) {
+      current.add(index.toPath());
+    }
+
+    Set<Path> known = new HashSet<>();
+    getPacks().forEach(pack -> known.add(pack.getIndexPath()));
+    if (current.equals(known)) {
+      return false;
+    }
+
+    try {
+      for (PackFile pack : getPacks()) {
+        pack.close();
+      }
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+    packs = null;
+    return true;
+  }
+
+  /**
+   * Another process may have repacked objects, leaving packs read before deleted
+   */
+  @Override public void refresh() {
+    rescanPacks();
+  }
+
+  @Override public Collection<ObjectId> listObjects(String kind) {
+    rescanPacks();
+    Set<ObjectId> ids = new HashSet<>(super.listObjects(kind));
+    getPacks().forEach(pack -> ids.addAll(pack.list(kind)));
+    return ids;
+  }
+
+  /**
+   * Write all the objects to a new pack, then remove their loose copies and the old packs
+   */
+  @Override public void pack(Map<String, Collection<List<ObjectId>>> chainsByKind) {
+    try {
+      Path dir = getFile(PACKS_PATH).toPath();
+      Files.createDirectories(dir);
+      Path fresh = PackWriter.write(dir, chainsByKind, this);
+
+      for (PackFile pack : getPacks()) {
+        if (pack.getIndexPath().equals(fresh)) {
+          pack.close();
+        } else {
+          pack.delete();
+        }
+      }
+      packs = null;
+
+      chainsByKind.forEach((kind, chains) ->
+          chains.forEach(chain -> chain.forEach(id -> super.deleteObject(kind, id))));
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package git.repo;
+
+import git.GitException;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Readers-writer lock of a repository: commands, that only read, share it,
+ * while commands, that change HEAD, the index or refs, hold it alone.<br>
+ * Threads of a process are coordinated by a {@link ReentrantReadWriteLock},
+ * processes by {@link FileChannel#lock} on a lock file, taken while any thread holds the lock.
+ * The file has two locked bytes: a gate, that a waiting writer holds, so that new readers
+ * queue behind it instead of starving it, and the lock itself.<br>
+ * It also counts acquisitions and the time spent waiting for them.
+ */
+public class RepositoryLock {
+  private static final long GATE = 0;
+  private static final long DATA = 1;
+  private static final long SIZE = 1;
+
+  private final Path file;
+  private final ReentrantReadWriteLock threads = new ReentrantReadWriteLock();
+
+  private FileChannel channel = null;
+  private FileLock processes = null;
+  private int holders = 0;
+
+  private long sharedCount = 0;
+  private long exclusiveCount = 0;
+  private long waitNanos = 0;
+  private long maxWaitNanos = 0;
+
+  /**
+   * A lock for threads of this process only, like for a repository in memory
+   */
+  public RepositoryLock() {
+    this(null);
+  }
+
+  /**
+   * @param file to lock across processes, it's created on first use, if its folder exists
+   */
+  public RepositoryLock(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Wait until no one writes to the repository
+   */
+  public Held shared() {
+    return acquire(threads.readLock(), true);
+  }
+
+  /**
+   * Wait until no one reads or writes the repository.
+   * A thread holding the exclusive lock may take it, or the shared one, again.
+   */
+  public Held exclusive() {
+    return acquire(threads.writeLock(), false);
+  }
+
+  private Held acquire(Lock local, boolean shared) {
+    long started = System.nanoTime();
+    local.lock();
+    try {
+      lockFile(shared);
+    } catch (RuntimeException e) {
+      local.unlock();
+      throw e;
+    }
+    count(shared, System.nanoTime() - started);
+
+    return () -> {
+      unlockFile();
+      local.unlock();
+    };
+  }
+
+  /**
+   * The first holder takes the file lock for all the others.
+   * Only the exclusive lock may have no other holders, so the file lock is always of the right kind.
+   */
+  private synchronized void lockFile(boolean shared) {
+    if (holders++ > 0 || file == null || !Files.isDirectory(file.getParent())) {
+      return;
+    }
+
+    try {
+      if (channel == null) {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      }
+      try (FileLock ignored = channel.lock(GATE, SIZE, shared)) {
+        processes = channel.lock(DATA, SIZE, shared);
+      }
+    } catch (IOException e) {
+      holders--;
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  private synchronized void unlockFile() {
+    if (--holders > 0 || processes == null) {
+      return;
+    }
+
+    try {
+      processes.release();
+      processes = null;
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  private synchronized void count(boolean shared, long waited) {
+    if (shared) {
+      sharedCount++;
+    } else {
+      exclusiveCount++;
+    }
+    waitNanos += waited;
+    maxWaitNanos = Math.max(maxWaitNanos, waited);
+  }
+
+  public synchronized long getSharedCount() {
+    return sharedCount;
+  }
+
+  public synchronized long getExclusiveCount() {
+    return exclusiveCount;
+  }
+
+  public synchronized long getWaitNanos() {
+    return waitNanos;
+  }
+
+  public synchronized long getMaxWaitNanos() {
+    return maxWaitNanos;
+  }
+
+  @Override public synchronized String toString() {
+    return String.format("Repository lock: %d shared, %d exclusive, waited %d ms in total, %d ms at most",
+        sharedCount, exclusiveCount,
+        TimeUnit.NANOSECONDS.toMillis(waitNanos), TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+  }
+
+  /**
+   * Releases the lock on close
+   */
+  public interface Held extends AutoCloseable {
+    @Override void close();
+  }
+}
@@ -1,9 +1,24 @@
 package git.repo;
 
-import java.io.File;
+import git.GitException;
+import git.Hasher;
+import git.ObjectId;
+import org.apache.commons.io.IOUtils;
+import util.Workers;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 public interface RepositoryManager {
   /**
@@ -17,37 +32,141 @@ public interface RepositoryManager {
   String loadString(String gitFolderPath);
 
   /**
-   * List all files in the git folder
+   * Replace content of the file with what <tt>update</tt> makes of the current one,
+   * null stands for no file. The file is locked meanwhile, so that concurrent updates
+   * are applied one after another. If <tt>update</tt> throws, the file stays as it is.
+   */
+  void updateString(String gitFolderPath, UnaryOperator<String> update);
+
+  /**
+   * Replace content of the file at once
+   */
+  void saveBytes(String gitFolderPath, byte[] content);
+
+  /**
+   * Load content of the file, or null if there is none
+   */
+  ByteBuffer loadBytes(String gitFolderPath);
+
+  /**
+   * List files in the folder of the git folder and its subfolders, relative to the folder.
+   * A missing folder, or a file, has nothing to list.
    */
   Collection<Path> list(String gitFolderPath);
 
-  Collection<File> listWorkingDir(File path);
+  /**
+   * List files of the working directory under the folder, except the git folder.
+   * Paths are relative to the working directory, the empty path lists all of it.
+   * A path, that is not a folder, is listed as itself.
+   */
+  Collection<Path> listWorkingDir(Path path);
+
+  /**
+   * Store <tt>content</tt> as an object of the <tt>kind</tt> (like "blobs/"), possibly with compression.
+   * The identifier is asked from <tt>idOnceRead</tt> when the stream is fully consumed,
+   * so that it may depend on the hash of the content.
+   * An already existing object with the same identifier is left untouched.
+   */
+  void writeObject(String kind, InputStream content, Supplier<ObjectId> idOnceRead);
+
+  /**
+   * Open the object of the <tt>kind</tt>, possibly with decompression
+   */
+  InputStream openObject(String kind, ObjectId id) throws IOException;
+
+  boolean hasObject(String kind, ObjectId id);
+
+  /**
+   * List identifiers of all objects of the <tt>kind</tt>
+   */
+  Collection<ObjectId> listObjects(String kind);
+
+  /**
+   * @return the number of bytes freed, zero if the object is not stored on its own
+   */
+  long deleteObject(String kind, ObjectId id);
+
+  /**
+   * Delete objects of the kind, that are not in <tt>used</tt>, in parallel
+   */
+  default Sweep sweep(String kind, Set<ObjectId> used) {
+    List<ObjectId> unused = listObjects(kind).stream()
+        .filter(id -> !used.contains(id))
+        .collect(Collectors.toList());
+
+    List<Long> freed = Workers.map(unused, id -> deleteObject(kind, id));
+    return new Sweep(kind,
+        (int) freed.stream().filter(bytes -> bytes > 0).count(),
+        freed.stream().mapToLong(Long::longValue).sum());
+  }
+
+  /**
+   * Move objects to a pack. Every list in <tt>chainsByKind</tt> holds versions of the same content,
+   * newest first, so that older ones may be stored as deltas of newer ones.
+   */
+  default void pack(Map<String, Collection<List<ObjectId>>> chainsByKind) {
+    throw new GitException("Packing is not supported by the repository");
+  }
+
+  default void saveObject(String kind, ObjectId id, byte[] content) {
+    writeObject(kind, new ByteArrayInputStream(content), () -> id);
+  }
+
+  default ByteBuffer readObject(String kind, ObjectId id) {
+    try (InputStream content = openObject(kind, id)) {
+      return ByteBuffer.wrap(IOUtils.toByteArray(content));
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
 
   /**
-   * Copy file <tt>originalPath</tt> to <tt>path</tt>.
-   * Possibly with compression.
+   * Open the file in the working directory
    */
-  void writeContentTo(String gitFolderPath, Path originalPath);
+  InputStream openWorkingDirFile(Path path) throws IOException;
 
   /**
-   * Read content of the file, possibly with decompression
+   * Read modification time, size and file key (inode) of the file in the working directory
    */
-  String read(Path path) throws IOException;
+  BasicFileAttributes readAttributes(Path path) throws IOException;
 
   void deleteWorkingDirFile(Path path);
 
   void deleteInnerFile(Path path);
 
-  void updateFile(Path path, String content);
+  void updateFile(Path path, InputStream content);
 
   boolean exists(String path);
 
+  /**
+   * Lock of the repository, the same for all managers of it in the process
+   */
+  RepositoryLock getLock();
+
+  /**
+   * Forget what's known about stored objects, as other processes may have packed or deleted them.
+   * Called with the lock held, before every command.
+   */
+  default void refresh() {
+  }
+
   /**
    * Called once, on git init
+   *
+   * @param hasher hash function of objects of the new repository
+   */
+  void initialize(Hasher hasher);
+
+  /**
+   * @return hash function the repository was initialized with
    */
-  void initialize();
+  Hasher getHasher();
 
-  default void restoreBlobInWorkingDir(Path path, String blobId) {
-    updateFile(path, Blob.getByIdentifier(blobId, this).getSource());
+  default void restoreBlobInWorkingDir(Path path, ObjectId blobId) {
+    try (InputStream content = Blob.getByIdentifier(blobId, this).openStream()) {
+      updateFile(path, content);
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
   }
 }
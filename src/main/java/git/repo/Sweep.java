@@ -0,0 +1,28 @@
+package git.repo;
+
+/**
+ * Result of removing unused objects of a kind
+ */
+public class Sweep {
+  private final String kind;
+  private final int removed;
+  private final long freedBytes;
+
+  public Sweep(String kind, int removed, long freedBytes) {
+    this.kind = kind;
+    this.removed = removed;
+    this.freedBytes = freedBytes;
+  }
+
+  public String getKind() {
+    return kind;
+  }
+
+  public int getRemoved() {
+    return removed;
+  }
+
+  public long getFreedBytes() {
+    return freedBytes;
+  }
+}
@@ -7,19 +7,22 @@ import git.commits.Commit;
 import git.commits.CommitsManager;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.function.Supplier;
+
 public class RevisionManager {
   private static final String HEAD = "HEAD";
 
   private final BranchManager branches;
   private final CommitsManager commits;
-  private Revision head;
 
-  public RevisionManager(BranchManager branches, CommitsManager commits) {
+  /**
+   * Where HEAD points, asked when "HEAD" is resolved
+   */
+  private final Supplier<Revision> head;
+
+  public RevisionManager(BranchManager branches, CommitsManager commits, Supplier<Revision> head) {
     this.branches = branches;
     this.commits = commits;
-  }
-
-  public void setHead(Revision head) {
     this.head = head;
   }
 
@@ -38,7 +41,7 @@ public class RevisionManager {
 
   public @NotNull Revision get(String hashOrBranchName) {
     if (HEAD.equals(hashOrBranchName)) {
-      return head;
+      return head.get();
     }
 
     if (!exists(hashOrBranchName)) {
@@ -0,0 +1,142 @@
+package git.trees;
+
+import git.ObjectId;
+import git.repo.RepositoryManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers modification time, size, inode and blob id of working directory files,
+ * so that files with unchanged stat data are not read and hashed again.
+ * It's safe to use from several threads at once.
+ */
+public class StatCache {
+  private static final String STAT_CACHE_PATH = "index.stat";
+  private static final String SEPARATOR = "\t";
+
+  /**
+   * Files modified that recently may change again within the same mtime tick,
+   * they are not cached and are always hashed
+   */
+  private static final long RACY_INTERVAL_MS = 2000;
+
+  private final RepositoryManager repo;
+  private Map<Path, Entry> entries = null;
+  private volatile boolean changed = false;
+
+  private static class Entry {
+    final long modified;
+    final long size;
+    final String fileKey;
+    final ObjectId blobId;
+
+    Entry(long modified, long size, String fileKey, ObjectId blobId) {
+      this.modified = modified;
+      this.size = size;
+      this.fileKey = fileKey;
+      this.blobId = blobId;
+    }
+
+    Entry(BasicFileAttributes attributes, ObjectId blobId) {
+      this(attributes.lastModifiedTime().toMillis(), attributes.size(),
+          Objects.toString(attributes.fileKey(), ""), blobId);
+    }
+
+    boolean matches(BasicFileAttributes attributes) {
+      return modified == attributes.lastModifiedTime().toMillis()
+          && size == attributes.size()
+          && fileKey.equals(Objects.toString(attributes.fileKey(), ""));
+    }
+  }
+
+  public StatCache(RepositoryManager repo) {
+    this.repo = repo;
+  }
+
+  /**
+   * @return blob id of the file, if its stat data is the same as when it was recorded, or null
+   */
+  public ObjectId getBlobId(Path path) {
+    Entry entry = getEntries().get(path);
+    if (entry == null) {
+      return null;
+    }
+
+    try {
+      return entry.matches(repo.readAttributes(path)) ? entry.blobId : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  public void record(Path path, ObjectId blobId) {
+    try {
+      BasicFileAttributes attributes = repo.readAttributes(path);
+      if (System.currentTimeMillis() - attributes.lastModifiedTime().toMillis() < RACY_INTERVAL_MS) {
+        forget(path);
+      } else {
+        getEntries().put(path, new Entry(attributes, blobId));
+        changed = true;
+      }
+    } catch (IOException e) {
+      forget(path);
+    }
+  }
+
+  public void forget(Path path) {
+    if (getEntries().remove(path) != null) {
+      changed = true;
+    }
+  }
+
+  public boolean isChanged() {
+    return changed;
+  }
+
+  /**
+   * Save the cache, if it was changed since loaded
+   */
+  public void save() {
+    if (!changed) {
+      return;
+    }
+
+    StringBuilder content = new StringBuilder();
+    getEntries().forEach((path, entry) -> content
+        .append(entry.modified).append(SEPARATOR)
+        .append(entry.size).append(SEPARATOR)
+        .append(entry.fileKey).append(SEPARATOR)
+        .append(entry.blobId).append(SEPARATOR)
+        .append(path).append('\n'));
+
+    // it's replaced at once, so that no one sees it half-written
+    repo.saveBytes(STAT_CACHE_PATH, content.toString().getBytes(StandardCharsets.UTF_8));
+    changed = false;
+  }
+
+  private synchronized Map<Path, Entry> getEntries() {
+    if (entries == null) {
+      entries = new ConcurrentHashMap<>();
+
+      ByteBuffer content = repo.loadBytes(STAT_CACHE_PATH);
+      if (content != null) {
+        for (String line : StandardCharsets.UTF_8.decode(content).toString().split("\n")) {
+          String[] fields = line.split(SEPARATOR, 5);
+          if (fields.length == 5 && ObjectId.isHex(fields[3])) {
+            entries.put(Paths.get(fields[4]), new Entry(
+                Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], ObjectId.fromHex(fields[3])));
+          }
+        }
+      }
+    }
+    return entries;
+  }
+}
@@ -1,92 +1,246 @@
 package git.trees;
 
-import git.Git;
+import git.GitException;
+import git.ObjectId;
+import git.merge.ContentMerge;
 import git.repo.Blob;
 import git.repo.RepositoryManager;
+import util.Progress;
+import util.Workers;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.Map.Entry;
-import java.util.stream.Collectors;
 
+/**
+ * Directory of the repository: blobs and nested trees by name.<br>
+ * Every tree is a separate object with its own hash, so unchanged directories
+ * are shared between commits, and comparisons skip subtrees with equal hashes.
+ * Subtrees of a loaded tree are read on first access.
+ */
 public class Tree {
-  private Map<Path, String> pathToBlobId;
   private RepositoryManager repo;
   private TreeManager manager;
 
-  public Tree(RepositoryManager repo, TreeManager manager, Map<Path, String> pathToBlobId) {
+  /**
+   * Both are null until the tree is loaded
+   */
+  private Map<String, ObjectId> blobs;
+  private Map<String, Tree> subtrees;
+
+  /**
+   * Cached on load / dump / first request, reset by every modification
+   */
+  private ObjectId identifier = null;
+
+  /**
+   * Visitor of paths, that have different blobs in two trees, null stands for a missing file
+   */
+  private interface Difference {
+    void accept(Path path, ObjectId ours, ObjectId theirs);
+  }
+
+  Tree(RepositoryManager repo, TreeManager manager) {
+    this(repo, manager, new TreeMap<>(), new TreeMap<>());
+  }
+
+  Tree(RepositoryManager repo, TreeManager manager, Map<String, ObjectId> blobs, Map<String, Tree> subtrees) {
     this.repo = repo;
-    this.pathToBlobId = pathToBlobId;
     this.manager = manager;
+    this.blobs = blobs;
+    this.subtrees = subtrees;
   }
 
-  public void add(File file) {
-    if (file.isDirectory()) {
-      repo.listWorkingDir(file).forEach(this::add);
-    } else {
-      Path path = Git.toRelativePath(file);
-      if (repo.exists(path.toString())) {
-        Blob blob = Blob.buildFrom(path, repo);
-        pathToBlobId.put(path, blob.getHash());
+  /**
+   * Tree, that is stored in the repository and will be loaded on first access
+   */
+  Tree(RepositoryManager repo, TreeManager manager, ObjectId identifier) {
+    this.repo = repo;
+    this.manager = manager;
+    this.identifier = identifier;
+  }
+
+  private void ensureLoaded() {
+    if (blobs == null) {
+      Tree loaded = manager.load(identifier);
+      blobs = loaded.blobs;
+      subtrees = loaded.subtrees;
+    }
+  }
+
+  Map<String, ObjectId> getBlobs() {
+    ensureLoaded();
+    return blobs;
+  }
+
+  Map<String, Tree> getSubtrees() {
+    ensureLoaded();
+    return subtrees;
+  }
+
+  private boolean isEmpty() {
+    return getBlobs().isEmpty() && getSubtrees().isEmpty();
+  }
+
+  public void add(Path path) {
+    addAll(Collections.singletonList(path));
+  }
+
+  /**
+   * Add files and folders. Files are hashed and stored in parallel,
+   * the ones with unchanged stat data are taken from the cache.
+   */
+  public Tree addAll(Collection<Path> files) {
+    List<Path> paths = new ArrayList<>();
+    files.forEach(fileOrFolder -> paths.addAll(repo.listWorkingDir(fileOrFolder)));
+
+    List<Optional<ObjectId>> blobIds = Workers.map(paths, this::store);
+
+    for (int i = 0; i < paths.size(); i++) {
+      Path path = paths.get(i);
+      if (blobIds.get(i).isPresent()) {
+        put(path, blobIds.get(i).get());
       } else {
-        remove(file);
+        remove(path);
       }
     }
+    return this;
   }
 
-  public Tree addAll(Collection<File> paths) {
-    paths.forEach(this::add);
-    return this;
+  /**
+   * @return id of the stored blob, or nothing if the file doesn't exist
+   */
+  private Optional<ObjectId> store(Path path) {
+    if (!repo.exists(path.toString())) {
+      return Optional.empty();
+    }
+
+    ObjectId blobId = manager.getStats().getBlobId(path);
+    if (blobId == null || !repo.hasObject(Blob.BLOBS_PATH, blobId)) {
+      blobId = Blob.buildFrom(path, repo).getHash();
+      manager.getStats().record(path, blobId);
+    }
+    return Optional.of(blobId);
+  }
+
+  /**
+   * Remove the blob from index, but not from the repository
+   */
+  public void remove(Path path) {
+    remove(path, 0);
   }
 
   /**
-   * Remove the blob from index, but not from pathToBlobId
+   * Remove the blob, and folders, that become empty
+   *
+   * @return whether something was removed
    */
-  public void remove(File file) {
-    pathToBlobId.remove(Git.toRelativePath(file));
+  private boolean remove(Path path, int depth) {
+    String name = path.getName(depth).toString();
+    boolean removed;
+
+    if (depth == path.getNameCount() - 1) {
+      removed = getBlobs().remove(name) != null;
+    } else {
+      Tree child = getSubtrees().get(name);
+      removed = child != null && child.remove(path, depth + 1);
+      if (removed && child.isEmpty()) {
+        getSubtrees().remove(name);
+      }
+    }
+
+    if (removed) {
+      invalidate();
+    }
+    return removed;
+  }
+
+  void put(Path path, ObjectId blobId) {
+    Tree node = this;
+    for (int i = 0; i < path.getNameCount() - 1; i++) {
+      Tree child = node.getSubtrees().computeIfAbsent(path.getName(i).toString(), name -> new Tree(repo, manager));
+      node.invalidate();
+      node = child;
+    }
+    node.getBlobs().put(path.getFileName().toString(), blobId);
+    node.invalidate();
+  }
+
+  private ObjectId get(Path path) {
+    Tree node = this;
+    for (int i = 0; i < path.getNameCount() - 1 && node != null; i++) {
+      node = node.getSubtrees().get(path.getName(i).toString());
+    }
+    return node == null ? null : node.getBlobs().get(path.getFileName().toString());
   }
 
   public boolean has(Path path) {
-    return pathToBlobId.containsKey(path);
+    return get(path) != null;
   }
 
-  public Map<Path, String> getBlobIds() {
-    return pathToBlobId;
+  /**
+   * @return blob ids of all files in the tree and its subtrees, by their path
+   */
+  public Map<Path, ObjectId> getBlobIds() {
+    Map<Path, ObjectId> result = new HashMap<>();
+    collectBlobIds(null, result);
+    return Collections.unmodifiableMap(result);
+  }
+
+  private void collectBlobIds(Path prefix, Map<Path, ObjectId> into) {
+    getBlobs().forEach((name, blobId) -> into.put(child(prefix, name), blobId));
+    getSubtrees().forEach((name, tree) -> tree.collectBlobIds(child(prefix, name), into));
+  }
+
+  public ObjectId getIdentifier() {
+    if (identifier == null) {
+      identifier = manager.getIdentifier(this);
+    }
+    return identifier;
   }
 
-  public String getIdentifier() {
-    return manager.getIdentifier(this);
+  ObjectId getKnownIdentifier() {
+    return identifier;
+  }
+
+  void setIdentifier(ObjectId identifier) {
+    this.identifier = identifier;
+  }
+
+  private void invalidate() {
+    identifier = null;
   }
 
   /**
-   * Check the difference between trees, and delete / update pathToBlobId in current.
+   * Check the difference between trees, and delete / update blobs in current.
    * There are three kinds of differences:
    * <li>there is a file in the current tree (but not in the future), it will be deleted</li>
    * <li>there is a file in the future tree (but not in the current), it will be restored</li>
    * <li>there is the same file in the current file & in the future, the future version will be chosen</li>
+   * Files with the same blob in both trees are not touched.
    */
-  public void migrateTo(Tree futureTree) {
-    // traverse the old tree, delete files missing in the new
-    pathToBlobId.forEach((path, blobId) -> {
-      if (!futureTree.has(path)) {
-        repo.deleteWorkingDirFile(path);
+  public void migrateTo(Tree futureTree, Progress progress) {
+    Map<Path, ObjectId> changed = new HashMap<>();
+    List<Path> deleted = new ArrayList<>();
+
+    diff(futureTree, null, (path, ours, theirs) -> {
+      if (theirs == null) {
+        deleted.add(path);
+      } else {
+        changed.put(path, theirs);
       }
     });
 
-    // traverse the new tree, create or update files here
-    futureTree.pathToBlobId.forEach((path, blobId) -> {
-      pathToBlobId.put(path, blobId);
-      repo.restoreBlobInWorkingDir(path, blobId);
-    });
+    apply(changed, deleted, progress);
   }
 
-  public void migrateFilesTo(Tree futureTree, List<File> files) {
-    files.forEach(file -> {
-      Path path = Git.toRelativePath(file);
-      if (futureTree.has(path)) {
-        String blobId = futureTree.pathToBlobId.get(path);
-        pathToBlobId.put(path, blobId);
+  public void migrateFilesTo(Tree futureTree, List<Path> paths) {
+    paths.forEach(path -> {
+      ObjectId blobId = futureTree.get(path);
+      if (blobId != null) {
+        put(path, blobId);
         repo.restoreBlobInWorkingDir(path, blobId);
       } else {
         repo.deleteWorkingDirFile(path);
@@ -94,58 +248,152 @@ public class Tree {
     });
   }
 
+  /**
+   * Update the tree and the working directory: restore <tt>changed</tt> blobs, delete <tt>deleted</tt> files
+   */
+  private void apply(Map<Path, ObjectId> changed, List<Path> deleted, Progress progress) {
+    progress.start(changed.size() + deleted.size());
+
+    for (Path path : deleted) {
+      repo.deleteWorkingDirFile(path);
+      remove(path);
+      progress.tick();
+    }
+
+    changed.forEach((path, blobId) -> {
+      put(path, blobId);
+      repo.restoreBlobInWorkingDir(path, blobId);
+      progress.tick();
+    });
+
+    progress.finish();
+  }
+
   public Collection<Path> getPathsThatAreNotIn(Tree other) {
-    Set<Path> here = new HashSet<>(this.pathToBlobId.keySet());
-    here.removeAll(other.pathToBlobId.keySet());
-    return here;
+    List<Path> result = new ArrayList<>();
+    diff(other, null, (path, ours, theirs) -> {
+      if (theirs == null) result.add(path);
+    });
+    return result;
   }
 
   public Collection<Path> intersectPathWithDifferentVersions(Tree other) {
-    HashSet<Entry<Path, String>> entries = new HashSet<>(this.pathToBlobId.entrySet());
-
-    entries.removeIf(entry ->
-        !other.pathToBlobId.containsKey(entry.getKey()) ||
-            other.pathToBlobId.get(entry.getKey()).equals(entry.getValue()));
-
-    return entries.stream().map(Entry::getKey).collect(Collectors.toList());
+    List<Path> result = new ArrayList<>();
+    diff(other, null, (path, ours, theirs) -> {
+      if (ours != null && theirs != null) result.add(path);
+    });
+    return result;
   }
 
   public boolean differs(Tree other) {
     return !this.getIdentifier().equals(other.getIdentifier());
   }
 
-  public HashSet<Path> merge(Tree theirs, Tree common) {
-    HashSet<Path> union = new HashSet<>(pathToBlobId.keySet());
-    union.addAll(theirs.pathToBlobId.keySet());
-    union.addAll(common.pathToBlobId.keySet());
-
+  /**
+   * Three-way merge: changes made by <tt>theirs</tt> since <tt>common</tt> are applied,
+   * files changed on both sides are merged by lines, see {@link ContentMerge}.
+   * Only subtrees changed by <tt>theirs</tt> are visited.
+   *
+   * @param ourLabel   names this side in conflict markers
+   * @param theirLabel names <tt>theirs</tt> in conflict markers
+   * @param markConflicts whether to write conflict markers to the working directory,
+   *                      or to leave files with conflicts as they are
+   * @return paths changed on both sides, that weren't merged: deleted on one side, binary,
+   * or with conflicts, the tree keeps our version of them
+   */
+  public HashSet<Path> merge(Tree theirs, Tree common, String ourLabel, String theirLabel,
+                             boolean markConflicts, Progress progress) {
     HashSet<Path> conflicts = new HashSet<>();
+    Map<Path, ObjectId> changed = new HashMap<>();
+    List<Path> deleted = new ArrayList<>();
+    Map<Path, ObjectId[]> changedOnBothSides = new HashMap<>();
 
-    for (Path path : union) {
-      if (!same(path, theirs, common) && same(path, this, common)) {
+    common.diff(theirs, null, (path, base, their) -> {
+      ObjectId our = get(path);
+      if (Objects.equals(our, base)) {
         // theirs have more actual version
-        if (theirs.has(path)) {
-          String blobId = theirs.pathToBlobId.get(path);
-          pathToBlobId.put(path, blobId);
-          repo.restoreBlobInWorkingDir(path, blobId);
+        if (their == null) {
+          deleted.add(path);
         } else {
-          repo.deleteWorkingDirFile(path);
-          remove(path.toFile());
+          changed.put(path, their);
         }
-      } else if (!same(path, theirs, common) && !same(path, this, common) && !same(path, this, theirs)) {
+      } else if (our == null || their == null) {
         conflicts.add(path);
+      } else if (!our.equals(their)) {
+        changedOnBothSides.put(path, new ObjectId[]{base, our, their});
       }
-    }
+    });
 
+    apply(changed, deleted, progress);
+
+    changedOnBothSides.forEach((path, versions) -> {
+      if (!mergeContent(path, versions[0], versions[1], versions[2], ourLabel, theirLabel, markConflicts)) {
+        conflicts.add(path);
+      }
+    });
     return conflicts;
   }
 
-  private String get(Path path) {
-    return pathToBlobId.get(path);
+  /**
+   * Write the merged file to the working directory, and to the tree, if it has no conflicts
+   *
+   * @param base version, null if the file was added on both sides
+   * @return whether the file was merged cleanly
+   */
+  private boolean mergeContent(Path path, ObjectId base, ObjectId our, ObjectId their,
+                               String ourLabel, String theirLabel, boolean markConflicts) {
+    try {
+      ContentMerge merge = ContentMerge.merge(
+          base == null ? null : () -> Blob.getByIdentifier(base, repo).openStream(),
+          () -> Blob.getByIdentifier(our, repo).openStream(),
+          () -> Blob.getByIdentifier(their, repo).openStream(),
+          ourLabel, theirLabel);
+      if (merge == null || !merge.isClean() && !markConflicts) {
+        return false;
+      }
+
+      try (InputStream merged = merge.open()) {
+        repo.updateFile(path, merged);
+      }
+      if (merge.isClean()) {
+        ObjectId blobId = Blob.buildFrom(path, repo).getHash();
+        manager.getStats().record(path, blobId);
+        put(path, blobId);
+      }
+      return merge.isClean();
+    } catch (IOException e) {
+      throw new GitException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Visit files, that differ between the trees, skipping subtrees with equal hashes
+   */
+  private void diff(Tree other, Path prefix, Difference difference) {
+    if (getIdentifier().equals(other.getIdentifier())) {
+      return;
+    }
+
+    Set<String> names = new TreeSet<>(getBlobs().keySet());
+    names.addAll(other.getBlobs().keySet());
+    for (String name : names) {
+      ObjectId ours = getBlobs().get(name);
+      ObjectId theirs = other.getBlobs().get(name);
+      if (!Objects.equals(ours, theirs)) {
+        difference.accept(child(prefix, name), ours, theirs);
+      }
+    }
+
+    Set<String> folders = new TreeSet<>(getSubtrees().keySet());
+    folders.addAll(other.getSubtrees().keySet());
+    for (String name : folders) {
+      Tree ours = getSubtrees().getOrDefault(name, new Tree(repo, manager));
+      Tree theirs = other.getSubtrees().getOrDefault(name, new Tree(repo, manager));
+      ours.diff(theirs, child(prefix, name), difference);
+    }
   }
 
-  private boolean same(Path path, Tree first, Tree second) {
-    return first.has(path) && second.has(path) &&
-        first.get(path).equals(second.get(path));
+  private static Path child(Path prefix, String name) {
+    return prefix == null ? Paths.get(name) : prefix.resolve(name);
   }
 }
@@ -2,70 +2,234 @@ package git.trees;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
-import git.Hasher;
+import git.GitException;
+import git.ObjectId;
+import git.repo.Blob;
+import git.repo.ObjectReader;
+import git.repo.ObjectWriter;
 import git.repo.RepositoryManager;
+import git.repo.Sweep;
 import util.PathConverter;
+import util.Workers;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.BiConsumer;
 
 public class TreeManager {
-  private static final String TREES_PATH = "trees/";
-  private static final String TREES_FILE_PATH = TREES_PATH + "%s.json";
+  public static final String TREES_PATH = "trees/";
+  private static final String BLOBS = "blobs";
+  private static final String TREES = "trees";
+  private static final int FORMAT = 1;
   private static final Gson GSON = new GsonBuilder()
       .registerTypeHierarchyAdapter(Path.class, new PathConverter())
       .create();
 
   private RepositoryManager repo;
+  private StatCache stats;
 
 
   public TreeManager(RepositoryManager repo) {
     this.repo = repo;
+    this.stats = new StatCache(repo);
+  }
+
+  public StatCache getStats() {
+    return stats;
   }
 
   public Tree createEmpty() {
-    return dump(new Tree(repo, this, new HashMap<>()));
+    return dump(new Tree(repo, this));
   }
 
   public Tree create() {
-    return new Tree(repo, this, new HashMap<>());
+    return new Tree(repo, this);
+  }
+
+  /**
+   * Build a tree of the working directory files, hashing only files,
+   * which stat data differs from the cached one. No objects are written.
+   */
+  public Tree scan(Collection<Path> files) {
+    List<Path> paths = new ArrayList<>(files);
+
+    List<ObjectId> blobIds = Workers.map(paths, path -> {
+      ObjectId blobId = stats.getBlobId(path);
+      if (blobId == null) {
+        blobId = Blob.hashOf(path, repo);
+        stats.record(path, blobId);
+      }
+      return blobId;
+    });
+
+    Tree tree = create();
+    for (int i = 0; i < paths.size(); i++) {
+      tree.put(paths.get(i), blobIds.get(i));
+    }
+    return tree;
   }
 
+  /**
+   * Save the tree and its subtrees, skipping ones not changed since they were loaded or dumped
+   */
   public Tree dump(Tree tree) {
-    String json = toJSON(tree);
-    String path = String.format(TREES_FILE_PATH, getIdentifier(json));
-    repo.saveString(path, json);
+    ObjectId known = tree.getKnownIdentifier();
+    if (known != null && repo.hasObject(TREES_PATH, known)) {
+      return tree;
+    }
+
+    tree.getSubtrees().values().forEach(this::dump);
+
+    byte[] content = encode(tree);
+    ObjectId identifier = repo.getHasher().hash(content);
+    repo.saveObject(TREES_PATH, identifier, content);
+    tree.setIdentifier(identifier);
+    return tree;
+  }
+
+  /**
+   * Load the tree, its subtrees are loaded on first access.
+   * Trees of older repositories are stored as JSON, either nested or
+   * as flat maps from paths to blob ids, the latter are nested on load.
+   */
+  public Tree load(ObjectId identifier) {
+    ByteBuffer content = repo.readObject(TREES_PATH, identifier);
+    Tree tree = content.get(0) == '{'
+        ? fromJSON(StandardCharsets.UTF_8.decode(content).toString())
+        : decode(new ObjectReader(content));
+    tree.setIdentifier(identifier);
     return tree;
   }
 
-  public Tree load(String identifier) {
-    String path = String.format(TREES_FILE_PATH, identifier);
-    String content = repo.loadString(path);
-    return new Tree(repo, this, GSON.fromJson(content, new TypeToken<HashMap<Path, String>>() {}.getType()));
+  /**
+   * Canonical form of the tree: format, id length, then blobs and subtrees,
+   * each as a count followed by entries of name and raw id, sorted by name
+   */
+  private byte[] encode(Tree tree) {
+    ObjectWriter out = new ObjectWriter()
+        .writeByte(FORMAT)
+        .writeByte(repo.getHasher().getIdLength());
+
+    out.writeVarInt(tree.getBlobs().size());
+    tree.getBlobs().forEach((name, id) -> out.writeString(name).writeId(id));
+
+    out.writeVarInt(tree.getSubtrees().size());
+    tree.getSubtrees().forEach((name, subtree) -> out.writeString(name).writeId(subtree.getIdentifier()));
+    return out.toByteArray();
   }
 
-  private String toJSON(Tree tree) {
-    return GSON.toJson(tree.getBlobIds());
+  private Tree decode(ObjectReader in) {
+    checkFormat(in);
+    Map<String, ObjectId> blobs = new TreeMap<>();
+    Map<String, Tree> subtrees = new TreeMap<>();
+    decodeEntries(in, blobs::put, (name, id) -> subtrees.put(name, new Tree(repo, this, id)));
+    return new Tree(repo, this, blobs, subtrees);
   }
 
-  public String getIdentifier(Tree tree) {
-    return getIdentifier(toJSON(tree));
+  private static void checkFormat(ObjectReader in) {
+    int format = in.readByte();
+    if (format != FORMAT) {
+      throw new GitException("Unknown tree format " + format);
+    }
   }
 
-  private String getIdentifier(String jsonDump) {
-    return Hasher.hashHex(jsonDump);
+  /**
+   * Read entries of a binary tree, which format byte is consumed already
+   */
+  private static void decodeEntries(ObjectReader in, BiConsumer<String, ObjectId> blobs, BiConsumer<String, ObjectId> subtrees) {
+    int idLength = in.readByte();
+
+    for (int count = in.readVarInt(); count > 0; count--) {
+      blobs.accept(in.readString(), in.readId(idLength));
+    }
+    for (int count = in.readVarInt(); count > 0; count--) {
+      subtrees.accept(in.readString(), in.readId(idLength));
+    }
   }
 
-  public void cleanAllExcept(Set<Tree> usedTrees) {
-    Set<String> used = usedTrees.stream()
-        .map(c -> c.getIdentifier() + ".json")
-        .collect(Collectors.toSet());
+  private Tree fromJSON(String content) {
+    JsonObject json = new JsonParser().parse(content).getAsJsonObject();
+
+    if (json.has(BLOBS) && json.get(BLOBS).isJsonObject()) {
+      Map<String, String> blobIds = GSON.fromJson(json.get(BLOBS), new TypeToken<TreeMap<String, String>>() {}.getType());
+      Map<String, String> subtreeIds = GSON.fromJson(json.get(TREES), new TypeToken<TreeMap<String, String>>() {}.getType());
+
+      Map<String, ObjectId> blobs = new TreeMap<>();
+      blobIds.forEach((name, id) -> blobs.put(name, ObjectId.fromHex(id)));
+      Map<String, Tree> subtrees = new TreeMap<>();
+      subtreeIds.forEach((name, id) -> subtrees.put(name, new Tree(repo, this, ObjectId.fromHex(id))));
+      return new Tree(repo, this, blobs, subtrees);
+    }
+
+    Map<Path, String> flat = GSON.fromJson(json, new TypeToken<HashMap<Path, String>>() {}.getType());
+    Tree tree = create();
+    flat.forEach((path, id) -> tree.put(path, ObjectId.fromHex(id)));
+    return tree;
+  }
+
+  ObjectId getIdentifier(Tree tree) {
+    return repo.getHasher().hash(encode(tree));
+  }
+
+  /**
+   * Mark the tree and its subtrees, reading only names and identifiers of their entries.
+   * Subtrees marked already are skipped, together with blobs under them.
+   *
+   * @param marked identifiers of marked trees
+   * @param blobs  receives paths and identifiers of blobs of the trees marked now
+   */
+  public void mark(ObjectId treeId, Set<ObjectId> marked, BiConsumer<Path, ObjectId> blobs) {
+    Deque<Map.Entry<Path, ObjectId>> pending = new ArrayDeque<>();
+    pending.push(new AbstractMap.SimpleEntry<>(null, treeId));
+
+    while (!pending.isEmpty()) {
+      Map.Entry<Path, ObjectId> next = pending.pop();
+      Path prefix = next.getKey();
+      if (!marked.add(next.getValue())) {
+        continue;
+      }
+
+      ByteBuffer content = repo.readObject(TREES_PATH, next.getValue());
+      if (content.get(0) == '{') {
+        markLoaded(prefix, load(next.getValue()), pending, blobs);
+        continue;
+      }
+
+      ObjectReader in = new ObjectReader(content);
+      checkFormat(in);
+      decodeEntries(in,
+          (name, id) -> blobs.accept(resolve(prefix, Paths.get(name)), id),
+          (name, id) -> pending.push(new AbstractMap.SimpleEntry<>(resolve(prefix, Paths.get(name)), id)));
+    }
+  }
+
+  /**
+   * Mark entries of an older tree, subtrees nested on load from a flat one are not stored on their own
+   */
+  private static void markLoaded(Path prefix, Tree tree, Deque<Map.Entry<Path, ObjectId>> pending, BiConsumer<Path, ObjectId> blobs) {
+    tree.getBlobs().forEach((name, id) -> blobs.accept(resolve(prefix, Paths.get(name)), id));
+    tree.getSubtrees().forEach((name, subtree) -> {
+      Path path = resolve(prefix, Paths.get(name));
+      ObjectId subtreeId = subtree.getKnownIdentifier();
+      if (subtreeId != null) {
+        pending.push(new AbstractMap.SimpleEntry<>(path, subtreeId));
+      } else {
+        subtree.getBlobIds().forEach((inner, id) -> blobs.accept(path.resolve(inner), id));
+      }
+    });
+  }
+
+  private static Path resolve(Path prefix, Path path) {
+    return prefix == null ? path : prefix.resolve(path);
+  }
 
-    repo.list(TREES_PATH).stream()
-        .filter(path -> !used.contains(path.getFileName().toString()))
-        .forEach(repo::deleteWorkingDirFile);
+  public Sweep cleanAllExcept(Set<ObjectId> usedIds) {
+    return repo.sweep(TREES_PATH, usedIds);
   }
 }
@@ -0,0 +1,39 @@
+package util;
+
+/**
+ * Counter of done work, printed to stderr on a single line
+ */
+public class Progress {
+  public static final Progress NONE = new Progress(null);
+
+  private final String title;
+  private int done = 0;
+  private int total = 0;
+
+  public Progress(String title) {
+    this.title = title;
+  }
+
+  public void start(int total) {
+    this.total = total;
+    this.done = 0;
+    print();
+  }
+
+  public void tick() {
+    done++;
+    print();
+  }
+
+  public void finish() {
+    if (title != null) {
+      System.err.println();
+    }
+  }
+
+  private void print() {
+    if (title != null) {
+      System.err.print("\r" + title + ": " + done + "/" + total);
+    }
+  }
+}
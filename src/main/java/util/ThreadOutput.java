@@ -0,0 +1,45 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output, that goes to the stream set for the current thread, or to the default one.
+ * Put in place of <tt>System.out</tt>, it lets threads, that run different commands, print apart.
+ */
+public class ThreadOutput extends OutputStream {
+  private final OutputStream fallback;
+  private final ThreadLocal<OutputStream> target = new ThreadLocal<>();
+
+  public ThreadOutput(OutputStream fallback) {
+    this.fallback = fallback;
+  }
+
+  /**
+   * Send output of the current thread to <tt>out</tt>, null restores the default stream
+   */
+  public void set(OutputStream out) {
+    if (out == null) {
+      target.remove();
+    } else {
+      target.set(out);
+    }
+  }
+
+  private OutputStream get() {
+    OutputStream out = target.get();
+    return out != null ? out : fallback;
+  }
+
+  @Override public void write(int b) throws IOException {
+    get().write(b);
+  }
+
+  @Override public void write(byte[] b, int off, int len) throws IOException {
+    get().write(b, off, len);
+  }
+
+  @Override public void flush() throws IOException {
+    get().flush();
+  }
+}
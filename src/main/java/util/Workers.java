@@ -0,0 +1,91 @@
+package util;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded pool for CPU and IO bound work, like walking and hashing the working directory.<br>
+ * The number of threads defaults to <tt>-Dgi.threads</tt> or the number of processors.
+ * A command may run with a pool of its own, see {@link #withThreads}.
+ */
+public class Workers {
+  private static final String THREADS_PROPERTY = "gi.threads";
+
+  private static final int THREADS = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+  private static ForkJoinPool pool = null;
+
+  /**
+   * Pool of the command running in the thread, if it has its own
+   */
+  private static final ThreadLocal<ForkJoinPool> commandPool = new ThreadLocal<>();
+
+  /**
+   * Run the command with a pool of <tt>count</tt> threads, created for it and shut down after it,
+   * so that commands running at the same time, like ones of the daemon, don't affect each other
+   *
+   * @param count of threads, or null to run with the shared pool
+   */
+  public static void withThreads(Integer count, Runnable command) {
+    if (count == null) {
+      command.run();
+      return;
+    }
+
+    ForkJoinPool own = new ForkJoinPool(Math.max(1, count));
+    ForkJoinPool previous = commandPool.get();
+    commandPool.set(own);
+    try {
+      command.run();
+    } finally {
+      commandPool.set(previous);
+      own.shutdown();
+    }
+  }
+
+  /**
+   * @return the pool of the current command, the pool of the worker thread, or the shared pool
+   */
+  public static ForkJoinPool getPool() {
+    Thread current = Thread.currentThread();
+    if (current instanceof ForkJoinWorkerThread) {
+      return ((ForkJoinWorkerThread) current).getPool();
+    }
+
+    ForkJoinPool own = commandPool.get();
+    return own != null ? own : getSharedPool();
+  }
+
+  private static synchronized ForkJoinPool getSharedPool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(THREADS);
+    }
+    return pool;
+  }
+
+  /**
+   * Apply the function to items in parallel
+   *
+   * @return results in the order of the items
+   */
+  public static <T, R> List<R> map(List<T> items, Function<T, R> function) {
+    ForkJoinPool pool = getPool();
+    if (pool.getParallelism() == 1 || items.size() < 2) {
+      return items.stream().map(function).collect(Collectors.toList());
+    }
+
+    try {
+      return pool.submit(() -> items.parallelStream().map(function).collect(Collectors.toList())).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof RuntimeException
+          ? (RuntimeException) e.getCause()
+          : new IllegalStateException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package git.branches;
+
+import git.GitException;
+import git.ObjectId;
+import git.repo.FileRepositoryManager;
+import git.repo.InMemoryRepositoryManager;
+import git.repo.RepositoryManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class BranchManagerTest {
+  private static final ObjectId FIRST = ObjectId.fromHex("1111111111111111111111111111111111111111");
+  private static final ObjectId SECOND = ObjectId.fromHex("2222222222222222222222222222222222222222");
+  private static final ObjectId THIRD = ObjectId.fromHex("3333333333333333333333333333333333333333");
+
+  /**
+   * Branches of a repository made before refs, any name was allowed
+   */
+  private static final String LEGACY_BRANCHES = "{" +
+      "\"master\": \"" + FIRST.toHex() + "\", " +
+      "\"feature/x\": \"" + SECOND.toHex() + "\", " +
+      "\"with space\": \"" + THIRD.toHex() + "\", " +
+      "\"a\": \"" + FIRST.toHex() + "\", " +
+      "\"a/b\": \"" + SECOND.toHex() + "\"}";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void legacyBranchesAreMigratedToPackedRefs() throws Exception {
+    RepositoryManager repo = legacyRepository();
+    BranchManager branches = new BranchManager(repo);
+    assertTrue(branches.hasLegacyBranches());
+    branches.migrateLegacyBranches();
+
+    assertFalse(branches.hasLegacyBranches());
+    assertNull(repo.loadString("branches.json"));
+    assertNotNull(repo.loadString("packed-refs"));
+    assertEquals(Arrays.asList("a", "a/b", "feature/x", "master", "with space"), names(branches));
+    assertEquals(FIRST, branches.get("master").getCommitId());
+    assertEquals(SECOND, branches.get("feature/x").getCommitId());
+    assertEquals(THIRD, branches.get("with space").getCommitId());
+    assertEquals(FIRST, branches.get("a").getCommitId());
+    assertEquals(SECOND, branches.get("a/b").getCommitId());
+  }
+
+  @Test
+  public void legacyBranchesCanBeMovedAndDeleted() throws Exception {
+    RepositoryManager repo = legacyRepository();
+    BranchManager branches = new BranchManager(repo);
+    branches.migrateLegacyBranches();
+
+    branches.update("feature/x", SECOND, THIRD);
+    branches.update("with space", THIRD, FIRST);
+    branches.update("a", FIRST, THIRD);
+    branches.update("a/b", SECOND, THIRD);
+
+    BranchManager reopened = new BranchManager(repo);
+    assertEquals(THIRD, reopened.get("feature/x").getCommitId());
+    assertEquals(FIRST, reopened.get("with space").getCommitId());
+    assertEquals(THIRD, reopened.get("a").getCommitId());
+    assertEquals(THIRD, reopened.get("a/b").getCommitId());
+
+    reopened.delete("feature/x");
+    reopened.delete("with space");
+    reopened.delete("a/b");
+    assertEquals(Arrays.asList("a", "master"), names(new BranchManager(repo)));
+  }
+
+  @Test
+  public void nestedBranchesAreLooseRefsInSubfolders() {
+    Path root = folder.getRoot().toPath();
+    BranchManager branches = new BranchManager(new FileRepositoryManager(root));
+
+    branches.update("feature/x", null, FIRST);
+    assertTrue(Files.isRegularFile(root.resolve(".gi/refs/heads/feature/x")));
+    assertEquals(FIRST, new BranchManager(new FileRepositoryManager(root)).get("feature/x").getCommitId());
+
+    branches.delete("feature/x");
+    assertFalse(Files.exists(root.resolve(".gi/refs/heads/feature")));
+
+    branches.update("feature", null, SECOND);
+    assertEquals(SECOND, branches.get("feature").getCommitId());
+  }
+
+  @Test(expected = GitException.class)
+  public void branchCantBeCreatedInsideAnother() {
+    BranchManager branches = new BranchManager(new InMemoryRepositoryManager());
+    branches.update("feature", null, FIRST);
+    branches.update("feature/x", null, SECOND);
+  }
+
+  @Test(expected = GitException.class)
+  public void branchCantBeCreatedWithSpaces() {
+    new BranchManager(new InMemoryRepositoryManager()).update("with space", null, FIRST);
+  }
+
+  @Test(expected = GitException.class)
+  public void movedBranchIsNotOverwritten() {
+    BranchManager branches = new BranchManager(new InMemoryRepositoryManager());
+    branches.update("feature/x", null, FIRST);
+    branches.update("feature/x", SECOND, THIRD);
+  }
+
+  private RepositoryManager legacyRepository() throws Exception {
+    RepositoryManager repo = new FileRepositoryManager(folder.getRoot().toPath());
+    Files.createDirectories(folder.getRoot().toPath().resolve(".gi"));
+    repo.saveString("branches.json", LEGACY_BRANCHES);
+    return repo;
+  }
+
+  private static List<String> names(BranchManager branches) {
+    return branches.stream().map(Branch::getName).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,78 @@
+package git.commits;
+
+import git.ObjectId;
+import git.repo.InMemoryRepositoryManager;
+import git.repo.ObjectWriter;
+import git.repo.RepositoryManager;
+import git.trees.Tree;
+import git.trees.TreeManager;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class CommitsManagerTest {
+  private final RepositoryManager repo = new InMemoryRepositoryManager();
+  private final TreeManager trees = new TreeManager(repo);
+  private final CommitsManager commits = new CommitsManager(repo, trees);
+  private final Tree tree = trees.dump(trees.createEmpty());
+
+  @Test
+  public void dateKeepsItsInstantAndZone() {
+    OffsetDateTime date = OffsetDateTime.of(2018, 10, 1, 12, 30, 15, 123, ZoneOffset.ofHours(-7));
+    ObjectId id = commits.build("message", tree, date, new ArrayList<>()).getIdentifier();
+
+    OffsetDateTime loaded = new CommitsManager(repo, trees).load(id).getDate();
+    assertEquals(date, loaded);
+    assertEquals(ZoneOffset.ofHours(-7), loaded.getOffset());
+  }
+
+  @Test
+  public void commitsOfDifferentZonesAreWalkedByTheirInstants() {
+    // the parent is made an hour earlier, though its local time is later
+    OffsetDateTime parentDate = OffsetDateTime.of(2018, 10, 1, 14, 0, 0, 0, ZoneOffset.ofHours(3));
+    OffsetDateTime childDate = OffsetDateTime.of(2018, 10, 1, 12, 0, 0, 0, ZoneOffset.UTC);
+    Commit parent = commits.build("parent", tree, parentDate, new ArrayList<>());
+    Commit other = commits.build("other", tree, childDate.minusMinutes(30), new ArrayList<>());
+    Commit child = commits.build("child", tree, childDate, singletonList(parent.getIdentifier()));
+
+    RevisionWalker walker = new RevisionWalker(commits, asList(other, child), null);
+    List<String> messages = new ArrayList<>();
+    walker.forEachRemaining(commit -> messages.add(commit.getMessage()));
+    assertEquals(asList("child", "other", "parent"), messages);
+
+    List<String> since = commits.walk(child, childDate.minusMinutes(30).withOffsetSameInstant(ZoneOffset.ofHours(5)))
+        .map(Commit::getMessage).collect(Collectors.toList());
+    assertEquals(singletonList("child"), since);
+  }
+
+  @Test
+  public void localTimeOfOlderCommitsIsKept() {
+    LocalDateTime date = LocalDateTime.of(2018, 10, 1, 12, 30);
+    byte[] content = new ObjectWriter()
+        .writeByte(1)
+        .writeByte(repo.getHasher().getIdLength())
+        .writeId(tree.getIdentifier())
+        .writeVarInt(0)
+        .writeVarLong(date.toEpochSecond(ZoneOffset.UTC))
+        .writeVarInt(0)
+        .writeString("old")
+        .toByteArray();
+    ObjectId id = repo.getHasher().hash(content);
+    repo.saveObject(CommitsManager.COMMITS_PATH, id, content);
+
+    Commit old = commits.load(id);
+    assertEquals("old", old.getMessage());
+    assertEquals(date, old.getDate().toLocalDateTime());
+    assertEquals(date.atZone(ZoneId.systemDefault()).getOffset(), old.getDate().getOffset());
+  }
+}
@@ -0,0 +1,58 @@
+package git.merge;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class LineSequenceTest {
+  @Test
+  public void linesWithTheSameHashAndLengthDiffer() {
+    LineSequence.Interner interner = new LineSequence.Interner();
+    int first = interner.intern(bytes("one\n"), 4, 42);
+    int second = interner.intern(bytes("two\n"), 4, 42);
+
+    assertNotEquals(first, second);
+    assertEquals(first, interner.intern(bytes("one\n"), 4, 42));
+    assertEquals(second, interner.intern(bytes("two\n"), 4, 42));
+    assertEquals(2, interner.size());
+  }
+
+  @Test
+  public void equalLinesOfDifferentFilesShareIds() throws Exception {
+    LineSequence.Interner interner = new LineSequence.Interner();
+    LineSequence ours = read("a\nb\nc", interner);
+    LineSequence theirs = read("c\nb\na\nc", interner);
+
+    assertEquals(3, ours.size());
+    assertEquals(4, theirs.size());
+    assertEquals(ours.get(1), theirs.get(1));
+    assertEquals(ours.get(2), theirs.get(3));
+    // the last line has no line feed, so it differs from the first one of theirs
+    assertNotEquals(ours.get(2), theirs.get(0));
+    assertEquals(4, interner.size());
+  }
+
+  @Test
+  public void manyLinesAreInterned() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      text.append("line ").append(i % 5000).append('\n');
+    }
+    LineSequence.Interner interner = new LineSequence.Interner();
+    LineSequence lines = read(text.toString(), interner);
+
+    assertEquals(5000, interner.size());
+    assertTrue(lines.rangeEquals(0, 5000, lines, 5000, 10000));
+  }
+
+  private static LineSequence read(String text, LineSequence.Interner interner) throws Exception {
+    return LineSequence.read(new ByteArrayInputStream(bytes(text)), interner);
+  }
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}